@@ -0,0 +1,42 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+// The keystore code of the service runs unchanged on the host, the android and kotlin side it
+// depends on is replaced by the fakes in src/main/java.
+val serviceSources by tasks.registering(Sync::class) {
+    from(rootProject.file("service/src/main/java")) {
+        include("io/github/a13e300/tricky_store/Logger.java")
+        include("io/github/a13e300/tricky_store/keystore/**")
+    }
+    into(layout.buildDirectory.dir("generated/sources/service"))
+}
+
+sourceSets {
+    main {
+        java.srcDir(serviceSources)
+    }
+}
+
+dependencies {
+    compileOnly(libs.annotation)
+    implementation(libs.bcpkix.jdk18on)
+    implementation(libs.kotlin.stdlib)
+    implementation(libs.kxml2)
+    jmh("org.openjdk.jmh:jmh-core:${libs.versions.jmh.get()}")
+    jmhAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:${libs.versions.jmh.get()}")
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    benchmarkMode = listOf("thrpt")
+    timeUnit = "s"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    resultFormat = "JSON"
+    // e.g. ./gradlew :benchmark:jmh -Pjmh.includes=KeyboxBenchmark
+    providers.gradleProperty("jmh.includes").orNull?.let { includes = listOf(it) }
+}
@@ -0,0 +1,72 @@
+package io.github.a13e300.tricky_store.benchmark;
+
+import android.hardware.security.keymint.KeyParameter;
+import android.hardware.security.keymint.SecurityLevel;
+import android.system.keystore2.Domain;
+import android.system.keystore2.KeyDescriptor;
+import android.system.keystore2.KeyEntryResponse;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.x509.Extension;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.util.List;
+
+import io.github.a13e300.tricky_store.Config;
+import io.github.a13e300.tricky_store.keystore.AttestationTemplate;
+import io.github.a13e300.tricky_store.keystore.CertHack;
+import io.github.a13e300.tricky_store.keystore.Utils;
+
+/**
+ * Key generation and attestation as done on keystore2 binder threads.
+ */
+@State(Scope.Benchmark)
+public class CertHackBenchmark {
+    @Param({"EC_P256", "EC_P384", "RSA_2048", "RSA_4096"})
+    public Fixtures.KeySpec spec;
+
+    private KeyParameter[] keyParameters;
+    private CertHack.KeyGenParameters params;
+    private KeyDescriptor descriptor;
+    private DEROctetString applicationId;
+    private List<Certificate> chain;
+
+    @Setup
+    public void setup() throws Exception {
+        CertHack.readFromXml(Fixtures.keybox(2), null);
+        keyParameters = Fixtures.keyParameters(spec);
+        params = new CertHack.KeyGenParameters(keyParameters);
+        descriptor = new KeyDescriptor();
+        descriptor.domain = Domain.APP;
+        descriptor.nspace = -1;
+        descriptor.alias = "benchmark";
+        applicationId = new DEROctetString(new byte[64]);
+        chain = CertHack.generateKeyPair(Config.APP_UID, descriptor, null, params).second;
+    }
+
+    @Benchmark
+    public CertHack.KeyGenParameters keyGenParameters() {
+        return new CertHack.KeyGenParameters(keyParameters);
+    }
+
+    @Benchmark
+    public android.util.Pair<KeyPair, List<Certificate>> generateKeyPair() {
+        return CertHack.generateKeyPair(Config.APP_UID, descriptor, null, params);
+    }
+
+    @Benchmark
+    public Extension createExtension() throws Exception {
+        return AttestationTemplate.get().createExtension(params, applicationId);
+    }
+
+    @Benchmark
+    public KeyEntryResponse buildResponse() throws Throwable {
+        return Utils.buildKeyEntryResponse(chain, params, descriptor, SecurityLevel.TRUSTED_ENVIRONMENT);
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.a13e300.tricky_store.benchmark;
+
+import android.hardware.security.keymint.Algorithm;
+import android.hardware.security.keymint.Digest;
+import android.hardware.security.keymint.EcCurve;
+import android.hardware.security.keymint.KeyParameter;
+import android.hardware.security.keymint.KeyParameterValue;
+import android.hardware.security.keymint.KeyPurpose;
+import android.hardware.security.keymint.Tag;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import io.github.a13e300.tricky_store.keystore.CryptoEngine;
+
+/**
+ * Inputs shared by the benchmarks: keybox documents and keymint parameter lists.
+ */
+public final class Fixtures {
+    public enum KeySpec {
+        EC_P256(Algorithm.EC, 256, EcCurve.P_256),
+        EC_P384(Algorithm.EC, 384, EcCurve.P_384),
+        RSA_2048(Algorithm.RSA, 2048, -1),
+        RSA_4096(Algorithm.RSA, 4096, -1);
+
+        final int algorithm;
+        final int keySize;
+        final int curve;
+
+        KeySpec(int algorithm, int keySize, int curve) {
+            this.algorithm = algorithm;
+            this.keySize = keySize;
+            this.curve = curve;
+        }
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * The parameters keystore2 receives for an attested signing key.
+     */
+    static KeyParameter[] keyParameters(KeySpec spec) {
+        List<KeyParameter> params = new ArrayList<>();
+        params.add(new KeyParameter(Tag.ALGORITHM, KeyParameterValue.algorithm(spec.algorithm)));
+        params.add(new KeyParameter(Tag.KEY_SIZE, KeyParameterValue.integer(spec.keySize)));
+        if (spec.algorithm == Algorithm.EC) {
+            params.add(new KeyParameter(Tag.EC_CURVE, KeyParameterValue.ecCurve(spec.curve)));
+        } else {
+            params.add(new KeyParameter(Tag.RSA_PUBLIC_EXPONENT,
+                    KeyParameterValue.longInteger(RSAKeyGenParameterSpec.F4.longValue())));
+        }
+        params.add(new KeyParameter(Tag.PURPOSE, KeyParameterValue.keyPurpose(KeyPurpose.SIGN)));
+        params.add(new KeyParameter(Tag.PURPOSE, KeyParameterValue.keyPurpose(KeyPurpose.VERIFY)));
+        params.add(new KeyParameter(Tag.DIGEST, KeyParameterValue.digest(Digest.SHA_2_256)));
+        params.add(new KeyParameter(Tag.NO_AUTH_REQUIRED, KeyParameterValue.boolValue(true)));
+        params.add(new KeyParameter(Tag.CERTIFICATE_SERIAL, KeyParameterValue.blob(BigInteger.ONE.toByteArray())));
+        params.add(new KeyParameter(Tag.CERTIFICATE_SUBJECT,
+                KeyParameterValue.blob(new X500Principal("CN=Android Keystore Key").getEncoded())));
+        params.add(new KeyParameter(Tag.CERTIFICATE_NOT_BEFORE, KeyParameterValue.dateTime(0L)));
+        params.add(new KeyParameter(Tag.CERTIFICATE_NOT_AFTER,
+                KeyParameterValue.dateTime(TimeUnit.DAYS.toMillis(365 * 30))));
+        params.add(new KeyParameter(Tag.ATTESTATION_CHALLENGE, KeyParameterValue.blob(new byte[32])));
+        return params.toArray(new KeyParameter[0]);
+    }
+
+    /**
+     * A keybox.xml with {@code keys} keys, alternating between EC and RSA roots.
+     */
+    static String keybox(int keys) throws Exception {
+        var xml = new StringBuilder("<?xml version=\"1.0\"?>\n<AndroidAttestation>\n")
+                .append("<NumberOfKeyboxes>1</NumberOfKeyboxes>\n")
+                .append("<Keybox DeviceID=\"benchmark\">\n");
+        for (int i = 0; i < keys; i++) {
+            boolean ec = i % 2 == 0;
+            var kp = ec ? CryptoEngine.generateECKeyPair("secp256r1")
+                    : CryptoEngine.generateRSAKeyPair(2048, RSAKeyGenParameterSpec.F4);
+            xml.append("<Key algorithm=\"").append(ec ? "ecdsa" : "rsa").append("\">\n")
+                    .append("<PrivateKey format=\"pem\">\n").append(pem(kp.getPrivate())).append("</PrivateKey>\n")
+                    .append("<CertificateChain>\n<NumberOfCertificates>1</NumberOfCertificates>\n")
+                    .append("<Certificate format=\"pem\">\n").append(pem(selfSigned(kp, ec))).append("</Certificate>\n")
+                    .append("</CertificateChain>\n</Key>\n");
+        }
+        return xml.append("</Keybox>\n</AndroidAttestation>\n").toString();
+    }
+
+    private static Object selfSigned(KeyPair kp, boolean ec) throws Exception {
+        var name = new X500Name("CN=Benchmark Root");
+        var builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(0L),
+                new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3650)), name, kp.getPublic());
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+        return CryptoEngine.toX509(builder.build(
+                CryptoEngine.contentSigner(ec ? "SHA256withECDSA" : "SHA256withRSA", kp.getPrivate())));
+    }
+
+    private static String pem(Object o) throws Exception {
+        var out = new StringWriter();
+        try (var writer = new JcaPEMWriter(out)) {
+            writer.writeObject(o);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package io.github.a13e300.tricky_store.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.github.a13e300.tricky_store.keystore.CertHack;
+
+/**
+ * keybox.xml reloads, which block the config observer and race with in-flight key generation.
+ */
+@State(Scope.Benchmark)
+public class KeyboxBenchmark {
+    @Param({"1", "10", "100"})
+    public int keys;
+
+    private String xml;
+
+    @Setup
+    public void setup() throws Exception {
+        xml = Fixtures.keybox(keys);
+    }
+
+    @Benchmark
+    public void readFromXml() {
+        CertHack.readFromXml(xml, null);
+    }
+}
@@ -0,0 +1,7 @@
+package android.content.pm;
+
+public interface IPackageManager {
+    PackageInfo getPackageInfo(String packageName, long flags, int userId);
+
+    String[] getPackagesForUid(int uid);
+}
@@ -0,0 +1,11 @@
+package android.content.pm;
+
+public class PackageInfo {
+    public String packageName;
+    public long versionCode;
+    public Signature[] signatures;
+
+    public long getLongVersionCode() {
+        return versionCode;
+    }
+}
@@ -0,0 +1,5 @@
+package android.content.pm;
+
+public abstract class PackageManager {
+    public static final int GET_SIGNATURES = 0x00000040;
+}
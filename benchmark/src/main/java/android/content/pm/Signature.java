@@ -0,0 +1,13 @@
+package android.content.pm;
+
+public class Signature {
+    private final byte[] signature;
+
+    public Signature(byte[] signature) {
+        this.signature = signature;
+    }
+
+    public byte[] toByteArray() {
+        return signature.clone();
+    }
+}
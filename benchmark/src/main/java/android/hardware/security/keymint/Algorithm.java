@@ -0,0 +1,9 @@
+package android.hardware.security.keymint;
+
+public @interface Algorithm {
+    int RSA = 1;
+    int EC = 3;
+    int AES = 32;
+    int TRIPLE_DES = 33;
+    int HMAC = 128;
+}
@@ -0,0 +1,9 @@
+package android.hardware.security.keymint;
+
+public @interface EcCurve {
+    int P_224 = 0;
+    int P_256 = 1;
+    int P_384 = 2;
+    int P_521 = 3;
+    int CURVE_25519 = 4;
+}
@@ -0,0 +1,14 @@
+package android.hardware.security.keymint;
+
+public class KeyParameter {
+    public int tag = 0;
+    public KeyParameterValue value;
+
+    public KeyParameter() {
+    }
+
+    public KeyParameter(int tag, KeyParameterValue value) {
+        this.tag = tag;
+        this.value = value;
+    }
+}
@@ -0,0 +1,84 @@
+package android.hardware.security.keymint;
+
+/**
+ * Host stand-in for the generated union, it only keeps the boxed value.
+ */
+public final class KeyParameterValue {
+    private final Object value;
+
+    private KeyParameterValue(Object value) {
+        this.value = value;
+    }
+
+    public static KeyParameterValue algorithm(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue ecCurve(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue keyPurpose(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue digest(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue integer(int value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue longInteger(long value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue dateTime(long value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue boolValue(boolean value) {
+        return new KeyParameterValue(value);
+    }
+
+    public static KeyParameterValue blob(byte[] value) {
+        return new KeyParameterValue(value);
+    }
+
+    public int getAlgorithm() {
+        return (int) value;
+    }
+
+    public int getEcCurve() {
+        return (int) value;
+    }
+
+    public int getKeyPurpose() {
+        return (int) value;
+    }
+
+    public int getDigest() {
+        return (int) value;
+    }
+
+    public int getInteger() {
+        return (int) value;
+    }
+
+    public long getLongInteger() {
+        return (long) value;
+    }
+
+    public long getDateTime() {
+        return (long) value;
+    }
+
+    public boolean getBoolValue() {
+        return (boolean) value;
+    }
+
+    public byte[] getBlob() {
+        return (byte[]) value;
+    }
+}
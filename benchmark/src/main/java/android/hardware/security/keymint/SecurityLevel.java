@@ -0,0 +1,8 @@
+package android.hardware.security.keymint;
+
+public @interface SecurityLevel {
+    int SOFTWARE = 0;
+    int TRUSTED_ENVIRONMENT = 1;
+    int STRONGBOX = 2;
+    int KEYSTORE = 100;
+}
@@ -0,0 +1,28 @@
+package android.hardware.security.keymint;
+
+/**
+ * The subset of keymint tags read by CertHack, values copied from Tag.aidl.
+ */
+public @interface Tag {
+    int PURPOSE = 536870913;
+    int ALGORITHM = 268435458;
+    int KEY_SIZE = 805306371;
+    int DIGEST = 536870917;
+    int EC_CURVE = 268435466;
+    int RSA_PUBLIC_EXPONENT = 1342177480;
+    int NO_AUTH_REQUIRED = 1879048695;
+    int ATTESTATION_CHALLENGE = -1879047484;
+    int ATTESTATION_ID_BRAND = -1879047482;
+    int ATTESTATION_ID_DEVICE = -1879047481;
+    int ATTESTATION_ID_PRODUCT = -1879047480;
+    int ATTESTATION_ID_SERIAL = -1879047479;
+    int ATTESTATION_ID_IMEI = -1879047478;
+    int ATTESTATION_ID_MEID = -1879047477;
+    int ATTESTATION_ID_MANUFACTURER = -1879047476;
+    int ATTESTATION_ID_MODEL = -1879047475;
+    int ATTESTATION_ID_SECOND_IMEI = -1879047469;
+    int CERTIFICATE_SERIAL = -2147482642;
+    int CERTIFICATE_SUBJECT = -1879047185;
+    int CERTIFICATE_NOT_BEFORE = 1610613744;
+    int CERTIFICATE_NOT_AFTER = 1610613745;
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+public final class Process {
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(int priority) {
+    }
+}
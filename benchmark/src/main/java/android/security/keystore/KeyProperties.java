@@ -0,0 +1,6 @@
+package android.security.keystore;
+
+public abstract class KeyProperties {
+    public static final String KEY_ALGORITHM_RSA = "RSA";
+    public static final String KEY_ALGORITHM_EC = "EC";
+}
@@ -0,0 +1,8 @@
+package android.system.keystore2;
+
+import android.hardware.security.keymint.KeyParameter;
+
+public class Authorization {
+    public int securityLevel = 0;
+    public KeyParameter keyParameter;
+}
@@ -0,0 +1,8 @@
+package android.system.keystore2;
+
+public class KeyDescriptor {
+    public int domain = 0;
+    public long nspace = 0L;
+    public String alias;
+    public byte[] blob;
+}
@@ -0,0 +1,10 @@
+package android.system.keystore2;
+
+public class KeyMetadata {
+    public KeyDescriptor key;
+    public int keySecurityLevel = 0;
+    public Authorization[] authorizations;
+    public byte[] certificate;
+    public byte[] certificateChain;
+    public long modificationTimeMs = 0L;
+}
@@ -0,0 +1,18 @@
+package io.github.a13e300.tricky_store;
+
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.util.List;
+
+import kotlin.Pair;
+
+public final class Cache {
+    public static final Cache INSTANCE = new Cache();
+
+    private Cache() {
+    }
+
+    public Pair<KeyPair, List<Certificate>> getKeyPairs(int uid, String alias) {
+        return null;
+    }
+}
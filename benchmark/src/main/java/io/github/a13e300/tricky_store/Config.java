@@ -0,0 +1,40 @@
+package io.github.a13e300.tricky_store;
+
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+
+/**
+ * Host stand-in for the Kotlin object, backed by a package manager that knows a single app.
+ */
+public final class Config {
+    public static final Config INSTANCE = new Config();
+
+    public static final int APP_UID = 10123;
+    public static final String APP_PACKAGE = "io.github.a13e300.benchmark";
+
+    private final IPackageManager pm = new IPackageManager() {
+        private final Signature signature = new Signature(new byte[512]);
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName, long flags, int userId) {
+            var info = new PackageInfo();
+            info.packageName = packageName;
+            info.versionCode = 1;
+            info.signatures = new Signature[]{signature};
+            return info;
+        }
+
+        @Override
+        public String[] getPackagesForUid(int uid) {
+            return uid % 100000 == APP_UID ? new String[]{APP_PACKAGE} : null;
+        }
+    };
+
+    private Config() {
+    }
+
+    public IPackageManager getPm() {
+        return pm;
+    }
+}
@@ -0,0 +1,16 @@
+package io.github.a13e300.tricky_store;
+
+public final class PackageIndex {
+    public static final PackageIndex INSTANCE = new PackageIndex();
+
+    private PackageIndex() {
+    }
+
+    public int getGeneration() {
+        return 0;
+    }
+
+    public String[] getPackagesForUid(int uid) {
+        return Config.INSTANCE.getPm().getPackagesForUid(uid);
+    }
+}
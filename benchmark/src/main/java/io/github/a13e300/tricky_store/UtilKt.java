@@ -0,0 +1,78 @@
+package io.github.a13e300.tricky_store;
+
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERTaggedObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Host stand-in for util.kt with fixed device values.
+ */
+public final class UtilKt {
+    private static final byte[] BOOT_KEY = new byte[32];
+    private static final byte[] BOOT_HASH = new byte[32];
+    private static final byte[] MODULE_HASH = new byte[32];
+
+    private UtilKt() {
+    }
+
+    public static byte[] getBootKey() {
+        return BOOT_KEY;
+    }
+
+    public static byte[] getBootHash() {
+        return BOOT_HASH;
+    }
+
+    public static int getPatchLevel() {
+        return 202501;
+    }
+
+    public static int getPatchLevelLong() {
+        return 20250101;
+    }
+
+    public static int getOsVersion() {
+        return 150000;
+    }
+
+    public static byte[] getModuleHash() {
+        return MODULE_HASH;
+    }
+
+    public static List<DERTaggedObject> getTelephonyInfos() {
+        return List.of(
+                tagged(714, "350000000000000"),
+                tagged(715, "35000000000000"),
+                tagged(723, "350000000000001"),
+                tagged(713, "0123456789ABCDEF"),
+                tagged(710, "google"),
+                tagged(711, "husky"),
+                tagged(712, "husky"),
+                tagged(716, "Google"),
+                tagged(717, "Pixel 8 Pro")
+        );
+    }
+
+    public static String trimLine(String s) {
+        var lines = s.trim().split("\n");
+        var sb = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) sb.append('\n');
+            sb.append(lines[i].trim());
+        }
+        return sb.toString();
+    }
+
+    public static PackageInfo getPackageInfoCompat(IPackageManager pm, String name, long flags, int userId) {
+        return pm.getPackageInfo(name, flags, userId);
+    }
+
+    private static DERTaggedObject tagged(int tag, String value) {
+        return new DERTaggedObject(true, tag, new DEROctetString(value.getBytes(StandardCharsets.UTF_8)));
+    }
+}
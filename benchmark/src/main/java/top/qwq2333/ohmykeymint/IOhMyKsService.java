@@ -0,0 +1,11 @@
+package top.qwq2333.ohmykeymint;
+
+import android.hardware.security.keymint.Certificate;
+
+import java.util.List;
+
+public interface IOhMyKsService {
+    void updateEcKeybox(byte[] key, List<Certificate> chain);
+
+    void updateRsaKeybox(byte[] key, List<Certificate> chain);
+}
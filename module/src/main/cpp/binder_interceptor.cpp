@@ -9,9 +9,19 @@
 #include <sys/ioctl.h>
 #include "kernel/binder.h"
 
+#include <algorithm>
+#include <cinttypes>
+#include <functional>
+#include <array>
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <memory>
 #include <utility>
 #include <map>
+#include <mutex>
 #include <shared_mutex>
+#include <thread>
 #include <vector>
 #include <queue>
 
@@ -20,10 +30,141 @@
 
 using namespace android;
 
+// appIds whose transactions are worth a round-trip to the daemon, everything else goes straight
+// to the real binder. Double buffered so the ioctl hook never takes a lock.
+class UidFilter {
+    static constexpr size_t kAppIdRange = 100000;
+    static constexpr size_t kWords = (kAppIdRange + 63) / 64;
+    std::array<std::array<std::atomic<uint64_t>, kWords>, 2> bits{};
+    std::atomic<int> active{-1}; // -1: filter disabled, every uid is allowed
+    std::mutex writeLock;
+public:
+    bool allows(uid_t uid) const {
+        auto i = active.load(std::memory_order_acquire);
+        if (i < 0) return true;
+        auto appId = uid % kAppIdRange;
+        return bits[i][appId / 64].load(std::memory_order_relaxed) & (1ull << (appId % 64));
+    }
+
+    status_t update(const Parcel &data) {
+        std::lock_guard g{writeLock};
+        int32_t count;
+        if (data.readInt32(&count) != OK) return BAD_VALUE;
+        if (count < 0) {
+            active.store(-1, std::memory_order_release);
+            LOGI("uid filter disabled");
+            return OK;
+        }
+        auto next = active.load(std::memory_order_relaxed) == 0 ? 1 : 0;
+        auto &words = bits[next];
+        for (size_t i = 0; i < kWords; i++) {
+            uint64_t w = 0;
+            if (i < (size_t) count && data.readUint64(&w) != OK) return BAD_VALUE;
+            words[i].store(w, std::memory_order_relaxed);
+        }
+        active.store(next, std::memory_order_release);
+        LOGI("uid filter updated (%d words)", count);
+        return OK;
+    }
+};
+
+// the size followed by the bytes
+static status_t writePayload(Parcel &out, const Parcel *payload, size_t size) {
+    status_t err;
+    if ((err = out.writeUint64(size)) != OK) return err;
+    return size == 0 ? OK : out.appendFrom(payload, 0, size);
+}
+
+// one daemon round-trip the binder thread may stop waiting for, the worker keeps the parcels
+// alive until the daemon answers
+struct InterceptCall {
+    Parcel data, reply;
+    std::mutex m;
+    std::condition_variable cv;
+    bool done = false;
+    // the binder thread stopped waiting, a worker that has not started the call yet drops it
+    bool abandoned = false;
+    status_t status = OK;
+};
+
+// threads making the daemon round-trips that have a deadline, fed through one queue. A worker is
+// added whenever a call would otherwise wait for one, so calls only queue behind each other once
+// the cap is reached
+class DeadlineWorkers {
+    // every keystore binder thread can wait on one call, and calls abandoned while running keep
+    // their worker until the daemon answers
+    static constexpr size_t kMaxWorkers = 16;
+    std::mutex m;
+    std::condition_variable cv;
+    std::queue<std::function<void()>> tasks;
+    size_t workers = 0;
+    size_t idle = 0;
+
+    [[noreturn]] void run() {
+        for (;;) {
+            std::function<void()> task;
+            {
+                std::unique_lock l{m};
+                idle++;
+                cv.wait(l, [this] { return !tasks.empty(); });
+                idle--;
+                task = std::move(tasks.front());
+                tasks.pop();
+            }
+            task();
+        }
+    }
+
+public:
+    void submit(std::function<void()> task) {
+        {
+            std::lock_guard g{m};
+            tasks.push(std::move(task));
+            if (idle < tasks.size() && workers < kMaxWorkers) {
+                workers++;
+                std::thread([this] { run(); }).detach();
+            }
+        }
+        cv.notify_one();
+    }
+};
+
+static DeadlineWorkers deadlineWorkers;
+
+// transact on the calling thread, or on a worker when there is a budget, TIMED_OUT once it is spent
+static status_t transactWithin(const std::shared_ptr<InterceptCall> &call, const sp<IBinder> &interceptor,
+                               uint32_t code, uint32_t budgetMs) {
+    if (budgetMs == 0) {
+        return interceptor->transact(code, call->data, &call->reply);
+    }
+    auto deadline = std::chrono::steady_clock::now() + std::chrono::milliseconds(budgetMs);
+    deadlineWorkers.submit([call, interceptor, code, deadline] {
+        {
+            // expired while queued, keystore already went on without it
+            std::lock_guard g{call->m};
+            if (call->abandoned || std::chrono::steady_clock::now() >= deadline) return;
+        }
+        auto status = interceptor->transact(code, call->data, &call->reply);
+        std::lock_guard g{call->m};
+        call->status = status;
+        call->done = true;
+        call->cv.notify_one();
+    });
+    std::unique_lock l{call->m};
+    if (!call->cv.wait_until(l, deadline, [&] { return call->done; })) {
+        call->abandoned = true;
+        return TIMED_OUT;
+    }
+    return call->status;
+}
+
 class BinderInterceptor : public BBinder {
     enum {
         REGISTER_INTERCEPTOR = 1,
-        UNREGISTER_INTERCEPTOR = 2
+        UNREGISTER_INTERCEPTOR = 2,
+        UPDATE_UID_FILTER = 3,
+        UPDATE_DEADLINES = 5,
+        GET_STATS = 6
     };
     enum {
         PRE_TRANSACT = 1,
@@ -35,15 +176,55 @@ class BinderInterceptor : public BBinder {
         OVERRIDE_REPLY,
         OVERRIDE_DATA
     };
+    // transaction codes an interceptor wants a callback for
+    struct CodeSet {
+        bool all = true;
+        std::vector<uint32_t> codes{};
+
+        bool contains(uint32_t code) const {
+            return all || std::find(codes.begin(), codes.end(), code) != codes.end();
+        }
+
+        // optional, older daemons do not send it and get every code
+        status_t read(const Parcel &data) {
+            if (data.dataAvail() < sizeof(int32_t)) return OK;
+            int32_t count;
+            if (data.readInt32(&count) != OK) return BAD_VALUE;
+            all = count < 0;
+            for (int32_t i = 0; i < count; i++) {
+                uint32_t c;
+                if (data.readUint32(&c) != OK) return BAD_VALUE;
+                codes.push_back(c);
+            }
+            return OK;
+        }
+    };
     struct InterceptItem {
         wp<IBinder> target{};
         sp<IBinder> interceptor;
+        CodeSet pre{};
+        CodeSet post{};
+        // codes forwarded whatever the uid filter says, for calls that are only watched
+        CodeSet anyUid{false};
+        bool needReply = true;
+        // milliseconds keystore waits for each callback before carrying on without it, 0 is forever
+        uint32_t defaultBudget = 0;
+        std::map<uint32_t, uint32_t> budgets{};
+
+        uint32_t budgetOf(uint32_t code) const {
+            auto it = budgets.find(code);
+            return it == budgets.end() ? defaultBudget : it->second;
+        }
     };
     using RwLock = std::shared_mutex;
     using WriteGuard = std::unique_lock<RwLock>;
     using ReadGuard = std::shared_lock<RwLock>;
     RwLock lock;
     std::map<wp<IBinder>, InterceptItem> items{};
+    UidFilter uidFilter{};
+    // whether any registration has codes that bypass the uid filter, spares filtered uids the lock
+    std::atomic_bool anyUidCodes{false};
+    std::atomic_uint64_t expired{0};
 public:
     status_t onTransact(uint32_t code, const android::Parcel &data, android::Parcel *reply,
                         uint32_t flags) override;
@@ -51,7 +232,7 @@ public:
     bool handleIntercept(sp<BBinder> target, uint32_t code, const Parcel &data, Parcel *reply,
                          uint32_t flags, status_t &result);
 
-    bool needIntercept(const wp<BBinder>& target);
+    bool needIntercept(const wp<BBinder>& target, uint32_t code, uid_t uid);
 };
 
 static sp<BinderInterceptor> gBinderInterceptor = nullptr;
@@ -152,7 +333,7 @@ int new_ioctl(int fd, int request, ...) {
                                     nullptr)) {
                                 auto b = (BBinder *) tr->cookie;
                                 auto wb = wp<BBinder>::fromExisting(b);
-                                if (gBinderInterceptor->needIntercept(wb)) {
+                                if (gBinderInterceptor->needIntercept(wb, tr->code, tr->sender_euid)) {
                                     tti.code = tr->code;
                                     tti.target = wb;
                                     need_intercept = true;
@@ -179,9 +360,14 @@ int new_ioctl(int fd, int request, ...) {
     return result;
 }
 
-bool BinderInterceptor::needIntercept(const wp<BBinder> &target) {
+bool BinderInterceptor::needIntercept(const wp<BBinder> &target, uint32_t code, uid_t uid) {
+    auto allowed = uidFilter.allows(uid);
+    if (!allowed && !anyUidCodes.load(std::memory_order_relaxed)) return false;
     ReadGuard g{lock};
-    return items.find(target) != items.end();
+    auto it = items.find(target);
+    if (it == items.end()) return false;
+    if (!allowed && !it->second.anyUid.contains(code)) return false;
+    return it->second.pre.contains(code) || it->second.post.contains(code);
 }
 
 status_t
@@ -198,6 +384,17 @@ BinderInterceptor::onTransact(uint32_t code, const android::Parcel &data, androi
         if (data.readStrongBinder(&interceptor) != OK) {
             return BAD_VALUE;
         }
+        CodeSet pre, post, anyUid{false};
+        int32_t needReply = 1;
+        if (pre.read(data) != OK || post.read(data) != OK) {
+            return BAD_VALUE;
+        }
+        if (data.dataAvail() >= sizeof(int32_t) && data.readInt32(&needReply) != OK) {
+            return BAD_VALUE;
+        }
+        if (anyUid.read(data) != OK) {
+            return BAD_VALUE;
+        }
         {
             WriteGuard wg{lock};
             wp<IBinder> t = target;
@@ -208,6 +405,13 @@ BinderInterceptor::onTransact(uint32_t code, const android::Parcel &data, androi
             }
             // TODO: send callback to old interceptor
             it->second.interceptor = interceptor;
+            it->second.pre = std::move(pre);
+            it->second.post = std::move(post);
+            it->second.anyUid = std::move(anyUid);
+            it->second.needReply = needReply != 0;
+            anyUidCodes.store(std::any_of(items.begin(), items.end(), [](const auto &item) {
+                return item.second.anyUid.all || !item.second.anyUid.codes.empty();
+            }), std::memory_order_relaxed);
             return OK;
         }
     } else if (code == UNREGISTER_INTERCEPTOR) {
@@ -234,6 +438,30 @@ BinderInterceptor::onTransact(uint32_t code, const android::Parcel &data, androi
             }
             return BAD_VALUE;
         }
+    } else if (code == UPDATE_UID_FILTER) {
+        return uidFilter.update(data);
+    } else if (code == UPDATE_DEADLINES) {
+        sp<IBinder> target;
+        int32_t defaultBudget, count;
+        if (data.readStrongBinder(&target) != OK || data.readInt32(&defaultBudget) != OK ||
+            data.readInt32(&count) != OK) {
+            return BAD_VALUE;
+        }
+        std::map<uint32_t, uint32_t> budgets;
+        for (int32_t i = 0; i < count; i++) {
+            uint32_t c, ms;
+            if (data.readUint32(&c) != OK || data.readUint32(&ms) != OK) return BAD_VALUE;
+            budgets[c] = ms;
+        }
+        WriteGuard wg{lock};
+        auto it = items.find(wp<IBinder>(target));
+        if (it == items.end()) return BAD_VALUE;
+        it->second.defaultBudget = std::max(defaultBudget, 0);
+        it->second.budgets = std::move(budgets);
+        return OK;
+    } else if (code == GET_STATS) {
+        if (!reply) return BAD_VALUE;
+        return reply->writeUint64(expired.load(std::memory_order_relaxed));
     }
     return UNKNOWN_TRANSACTION;
 }
@@ -243,6 +471,8 @@ BinderInterceptor::handleIntercept(sp<BBinder> target, uint32_t code, const Parc
                                    uint32_t flags, status_t &result) {
 #define CHECK(expr) ({ auto __result = (expr); if (__result != OK) { LOGE(#expr " = %d", __result); return false; } })
     sp<IBinder> interceptor;
+    bool wantsPre, wantsPost, needReply;
+    uint32_t budget;
     {
         ReadGuard rg{lock};
         auto it = items.find(target);
@@ -251,21 +481,44 @@ BinderInterceptor::handleIntercept(sp<BBinder> target, uint32_t code, const Parc
             return false;
         }
         interceptor = it->second.interceptor;
+        wantsPre = it->second.pre.contains(code);
+        wantsPost = it->second.post.contains(code);
+        needReply = it->second.needReply;
+        budget = it->second.budgetOf(code);
     }
     LOGD("intercept on binder %p code %d flags %d (reply=%s)", target.get(), code, flags,
          reply ? "true" : "false");
-    Parcel tmpData, tmpReply, realData;
-    CHECK(tmpData.writeStrongBinder(target));
-    CHECK(tmpData.writeUint32(code));
-    CHECK(tmpData.writeUint32(flags));
-    CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingUid()));
-    CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingPid()));
-    CHECK(tmpData.writeUint64(data.dataSize()));
-    CHECK(tmpData.appendFrom(&data, 0, data.dataSize()));
-    CHECK(interceptor->transact(PRE_TRANSACT, tmpData, &tmpReply));
-    int32_t preType;
-    CHECK(tmpReply.readInt32(&preType));
-    LOGD("pre transact type %d", preType);
+    auto call = std::make_shared<InterceptCall>();
+    Parcel &tmpData = call->data, &tmpReply = call->reply;
+    Parcel realData;
+    auto callingUid = IPCThreadState::self()->getCallingUid();
+    auto callingPid = IPCThreadState::self()->getCallingPid();
+    // header and a copy of the original data, only built once a callback is going to run
+    auto writeCall = [&]() -> status_t {
+        status_t status;
+        if ((status = tmpData.writeStrongBinder(target)) != OK) return status;
+        if ((status = tmpData.writeUint32(code)) != OK) return status;
+        if ((status = tmpData.writeUint32(flags)) != OK) return status;
+        if ((status = tmpData.writeInt32(callingUid)) != OK) return status;
+        if ((status = tmpData.writeInt32(callingPid)) != OK) return status;
+        return writePayload(tmpData, &data, data.dataSize());
+    };
+    // forward the caller's parcel as is unless the interceptor replaced it
+    const Parcel *forward = &data;
+    int32_t preType = CONTINUE;
+    if (wantsPre) {
+        CHECK(writeCall());
+        auto status = transactWithin(call, interceptor, PRE_TRANSACT, budget);
+        if (status == TIMED_OUT) {
+            // fail open, the daemon's late answer is dropped with the call
+            LOGW("pre transact of code %u expired after %u ms (%" PRIu64 " expired)", code, budget,
+                 ++expired);
+            return false;
+        }
+        CHECK(status);
+        CHECK(tmpReply.readInt32(&preType));
+        LOGD("pre transact type %d", preType);
+    }
     if (preType == SKIP) {
         return false;
     } else if (preType == OVERRIDE_REPLY) {
@@ -278,29 +531,31 @@ BinderInterceptor::handleIntercept(sp<BBinder> target, uint32_t code, const Parc
     } else if (preType == OVERRIDE_DATA) {
         size_t sz = tmpReply.readUint64();
         CHECK(realData.appendFrom(&tmpReply, tmpReply.dataPosition(), sz));
-    } else {
-        CHECK(realData.appendFrom(&data, 0, data.dataSize()));
+        forward = &realData;
+    }
+    result = target->transact(code, *forward, reply, flags);
+    if (!wantsPost) {
+        return true;
     }
-    result = target->transact(code, realData, reply, flags);
 
-    tmpData.freeData();
     tmpReply.freeData();
 
-    CHECK(tmpData.writeStrongBinder(target));
-    CHECK(tmpData.writeUint32(code));
-    CHECK(tmpData.writeUint32(flags));
-    CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingUid()));
-//    CHECK(tmpData.writeCString(IPCThreadState::self()->getCallingSid()));
-    CHECK(tmpData.writeInt32(IPCThreadState::self()->getCallingPid()));
+    // the post transaction starts with the same header and original data as the pre one,
+    // so only the result and the reply are appended
+    if (!wantsPre) CHECK(writeCall());
+    tmpData.setDataPosition(tmpData.dataSize());
     CHECK(tmpData.writeInt32(result));
-    CHECK(tmpData.writeUint64(data.dataSize()));
-    CHECK(tmpData.appendFrom(&data, 0, data.dataSize()));
-    CHECK(tmpData.writeUint64(reply == nullptr ? 0 : reply->dataSize()));
-    LOGD("data size %zu reply size %zu", data.dataSize(), reply == nullptr ? 0 : reply->dataSize());
-    if (reply) {
-        CHECK(tmpData.appendFrom(reply, 0, reply->dataSize()));
+    size_t replySize = reply != nullptr && needReply ? reply->dataSize() : 0;
+    LOGD("data size %zu reply size %zu", data.dataSize(), replySize);
+    CHECK(writePayload(tmpData, reply, replySize));
+    call->done = false;
+    auto status = transactWithin(call, interceptor, POST_TRANSACT, budget);
+    if (status == TIMED_OUT) {
+        LOGW("post transact of code %u expired after %u ms (%" PRIu64 " expired)", code, budget,
+             ++expired);
+        return true;
     }
-    CHECK(interceptor->transact(POST_TRANSACT, tmpData, &tmpReply));
+    CHECK(status);
     int32_t postType;
     CHECK(tmpReply.readInt32(&postType));
     LOGD("post transact type %d", postType);
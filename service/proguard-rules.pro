@@ -22,9 +22,14 @@
 -keepclasseswithmembers class io.github.a13e300.tricky_store.MainKt {
     public static void main(java.lang.String[]);
 }
+-keepclasseswithmembers class io.github.a13e300.tricky_store.trace.TraceDecoder {
+    public static void main(java.lang.String[]);
+}
 
+# strip debug logging from release builds, message suppliers and their captures go with it
 -assumenosideeffects class io.github.a13e300.tricky_store.Logger {
-    public static void d(java.lang.String);
+    public static void d(...);
+    public static void dd(...);
 }
 
 # keep these or bouncycastle will not work
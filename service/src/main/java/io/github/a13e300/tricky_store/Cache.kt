@@ -1,60 +1,238 @@
 package io.github.a13e300.tricky_store
 
+import android.os.SystemClock
 import android.system.keystore2.KeyEntryResponse
+import java.io.File
 import java.security.KeyPair
 import java.security.PrivateKey
 import java.security.cert.Certificate
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 object Cache {
     // imported key section
-    data class Owner(val uid: Int, val pid: Int)
+    private const val IMPORT_TTL_MS = 60_000L
+    private const val REAP_INTERVAL_MS = 10_000L
 
-    // These imported keys will be naturally dropped when app exits and pid changes
-    private val importedKeys = ConcurrentHashMap<Owner, Pair<Pair<PrivateKey, () -> Unit>, Certificate?>>()
+    data class Owner(val uid: Int, val pid: Int)
+    data class ImportedKey(
+        val privateKey: PrivateKey,
+        val onFinish: () -> Unit,
+        val certificate: Certificate?,
+        // start time of the owner process, tells a dead pid apart from a reused one
+        val startTime: Long?,
+        val createdAt: Long,
+    )
+
+    // entries are reaped once the owner process exits or updateSubcomponent never arrives
+    private val importedKeys = ConcurrentHashMap<Owner, ImportedKey>()
+    private val reclaimedImportedKeys = AtomicLong()
+
+    init {
+        Executors.newSingleThreadScheduledExecutor {
+            Thread(it, "ImportedKeyReaper").apply { isDaemon = true }
+        }.scheduleWithFixedDelay(::reapImportedKeys, REAP_INTERVAL_MS, REAP_INTERVAL_MS, TimeUnit.MILLISECONDS)
+    }
 
-    fun getImportedKey(uid: Int, pid: Int): Pair<Pair<PrivateKey, () -> Unit>, Certificate?>? =
-        importedKeys[Owner(uid, pid)]
+    fun getImportedKey(uid: Int, pid: Int): ImportedKey? = importedKeys[Owner(uid, pid)]
 
     fun preImportedKey(uid: Int, pid: Int, privateKey: PrivateKey, onFinish: () -> Unit) {
-        importedKeys[Owner(uid, pid)] = Pair(Pair(privateKey, onFinish), null) as Pair<Pair<PrivateKey, () -> Unit>, Certificate?>
+        importedKeys[Owner(uid, pid)] = ImportedKey(privateKey, onFinish, null, startTimeOf(pid), SystemClock.elapsedRealtime())
     }
 
     fun deleteImportedKey(uid: Int, pid: Int) = importedKeys.remove(Owner(uid, pid))
 
     fun finalizedImportedKey(uid: Int, pid: Int, cert: Certificate) {
-        val pair = importedKeys[Owner(uid, pid)] ?: return
-        importedKeys[Owner(uid, pid)] = Pair(pair.first, cert)
+        val key = importedKeys.computeIfPresent(Owner(uid, pid)) { _, key -> key.copy(certificate = cert) } ?: return
         // generate imported key
-        pair.first.second.invoke()
+        key.onFinish.invoke()
     }
 
+    fun getReclaimedImportedKeys() = reclaimedImportedKeys.get()
+
+    private fun reapImportedKeys() = runCatching {
+        val now = SystemClock.elapsedRealtime()
+        importedKeys.forEach { (owner, key) ->
+            val reason = when {
+                key.startTime != null && startTimeOf(owner.pid) != key.startTime -> "process exited"
+                // start time unreadable at import, all that can be told is whether the pid is gone
+                key.startTime == null && !File("/proc/${owner.pid}").exists() -> "process exited"
+                key.certificate == null && now - key.createdAt > IMPORT_TTL_MS -> "import expired"
+                else -> return@forEach
+            }
+            if (importedKeys.remove(owner, key)) {
+                reclaimedImportedKeys.incrementAndGet()
+                Logger.d { "reaped imported key uid=${owner.uid} pid=${owner.pid}: $reason" }
+            }
+        }
+    }.onFailure {
+        Logger.e("failed to reap imported keys", it)
+    }
+
+    // field 22 of /proc/<pid>/stat, counted after the parenthesized comm which may contain spaces
+    private fun startTimeOf(pid: Int): Long? = runCatching {
+        val stat = File("/proc/$pid/stat").readText()
+        stat.substring(stat.lastIndexOf(')') + 2).split(' ')[19].toLong()
+    }.getOrNull()
+
     // generated key section
     data class Key(val uid: Int, val alias: String)
     data class Info(val key: Key, val keyPair: KeyPair, val chain: List<Certificate>, val response: KeyEntryResponse)
+    data class Stats(val entries: Int, val bytes: Long, val uids: Int, val evictions: Long, val hits: Long, val misses: Long, val restored: Long)
 
-    private val keys = ConcurrentHashMap<Key, Info>()
+    private data class Nspace(val uid: Int, val nspace: Long)
+    private class Entry(val info: Info, val bytes: Int)
+    private class UidKeys {
+        val lru = LinkedHashMap<String, Entry>(16, 0.75f, true)
+        var bytes = 0L
+    }
+
+    // all generated key state below is guarded by lock, the maps are access ordered for LRU eviction
+    private val lock = Any()
+    private val keys = LinkedHashMap<Key, Entry>(64, 0.75f, true)
+    private val byUid = HashMap<Int, UidKeys>()
+    private val byNspace = HashMap<Nspace, MutableList<Info>>()
+    private var totalBytes = 0L
+    private var evictions = 0L
+    private var hits = 0L
+    private var misses = 0L
+    // misses answered from disk
+    private var restored = 0L
 
     fun putKey(uid: Int, alias: String, keyPair: KeyPair, chain: List<Certificate>, response: KeyEntryResponse) {
-        keys[Key(uid, alias)] = Info(Key(uid, alias), keyPair, chain, response)
+        putKey(Key(uid, alias), Info(Key(uid, alias), keyPair, chain, response))
     }
 
     fun putKey(key: Key, info: Info) {
-        keys[key] = info
+        insert(key, info)
+        PersistentKeyStore.put(info)
+    }
+
+    private fun insert(key: Key, info: Info) {
+        val entry = Entry(info, sizeOf(info))
+        synchronized(lock) {
+            remove(key)
+            keys[key] = entry
+            byUid.getOrPut(key.uid) { UidKeys() }.apply {
+                lru[key.alias] = entry
+                bytes += entry.bytes
+            }
+            info.response.metadata?.key?.nspace?.let {
+                byNspace.getOrPut(Nspace(key.uid, it)) { ArrayList(1) }.add(info)
+            }
+            totalBytes += entry.bytes
+            trim(key.uid)
+        }
     }
 
-    fun getInfoByNspace(callingUid: Int, nspace: Long): List<Info> = keys.values.filter { it.key.uid == callingUid && it.response.metadata?.key?.nspace == nspace }
+    fun getInfoByNspace(callingUid: Int, nspace: Long): List<Info> {
+        synchronized(lock) {
+            byNspace[Nspace(callingUid, nspace)]?.let { infos ->
+                // keys in use by operations are the last ones either limit should drop
+                infos.forEach { touch(it.key) }
+                return infos.toList()
+            }
+        }
+        // evicted, or generated before the daemon restarted
+        return PersistentKeyStore.load(callingUid, nspace).onEach {
+            insert(it.key, it)
+            synchronized(lock) { restored++ }
+        }
+    }
 
-    fun getKeyResponse(uid: Int, alias: String): KeyEntryResponse? = keys[Key(uid, alias)]?.response
+    fun getKeyResponse(uid: Int, alias: String): KeyEntryResponse? = get(Key(uid, alias))?.response
 
-    fun getKeyPairs(uid: Int, alias: String): Pair<KeyPair, List<Certificate>>? = keys[Key(uid, alias)]?.let { Pair(it.keyPair, it.chain) }
+    fun getKeyPairs(uid: Int, alias: String): Pair<KeyPair, List<Certificate>>? = get(Key(uid, alias))?.let { Pair(it.keyPair, it.chain) }
 
     fun deleteKey(uid: Int, alias: String) {
-        keys.remove(Key(uid, alias))
+        deleteKey(Key(uid, alias))
     }
 
     fun deleteKey(key: Key) {
-        keys.remove(key)
+        // disk first, a miss in between must not load the key back into memory
+        PersistentKeyStore.delete(key)
+        synchronized(lock) { remove(key) }
     }
-}
 
+    /**
+     * Point the responses of every cached key at the security level binders currently
+     * intercepted, keys loaded from disk later get them on load.
+     */
+    fun rebindSecurityLevels() {
+        synchronized(lock) {
+            keys.values.forEach { entry ->
+                val response = entry.info.response
+                response.metadata?.let { response.iSecurityLevel = KeystoreInterceptor.securityLevelOf(it.keySecurityLevel) }
+            }
+        }
+    }
+
+    fun stats() = synchronized(lock) { Stats(keys.size, totalBytes, byUid.size, evictions, hits, misses, restored) }
+
+    private fun get(key: Key): Info? {
+        synchronized(lock) {
+            keys[key]?.let {
+                hits++
+                byUid[key.uid]?.lru?.get(key.alias)
+                return it.info
+            }
+        }
+        // evicted, or generated before the daemon restarted
+        val info = PersistentKeyStore.load(key)?.also { insert(key, it) }
+        synchronized(lock) { if (info != null) restored++ else misses++ }
+        return info
+    }
+
+    private fun touch(key: Key) {
+        keys[key]
+        byUid[key.uid]?.lru?.get(key.alias)
+    }
+
+    private fun remove(key: Key) {
+        val entry = keys.remove(key) ?: return
+        byUid[key.uid]?.let {
+            it.lru.remove(key.alias)
+            it.bytes -= entry.bytes
+            if (it.lru.isEmpty()) byUid.remove(key.uid)
+        }
+        entry.info.response.metadata?.key?.nspace?.let { nspace ->
+            val index = Nspace(key.uid, nspace)
+            byNspace[index]?.let {
+                it.remove(entry.info)
+                if (it.isEmpty()) byNspace.remove(index)
+            }
+        }
+        totalBytes -= entry.bytes
+    }
+
+    // the entry that was just inserted is the most recently used one and is never evicted
+    private fun trim(uid: Int) {
+        val limits = Config.devConfig.keyCache
+        byUid[uid]?.let {
+            while (it.lru.size > 1 && (it.lru.size > limits.maxEntriesPerUid || it.bytes > limits.maxBytesPerUid)) {
+                evict(it.lru.values.first().info.key)
+            }
+        }
+        while (keys.size > 1 && (keys.size > limits.maxEntries || totalBytes > limits.maxBytes)) {
+            evict(keys.values.first().info.key)
+        }
+    }
+
+    private fun evict(key: Key) {
+        remove(key)
+        evictions++
+        Logger.d { "evicted generated key uid=${key.uid} alias=${key.alias}" }
+    }
+
+    // rough retained size, dominated by the encoded certificates
+    private fun sizeOf(info: Info): Int = runCatching {
+        val metadata = info.response.metadata
+        info.chain.sumOf { it.encoded.size } +
+                (metadata?.certificate?.size ?: 0) +
+                (metadata?.certificateChain?.size ?: 0) +
+                (info.keyPair.private.encoded?.size ?: 0) +
+                (info.keyPair.public.encoded?.size ?: 0)
+    }.getOrDefault(0)
+}
@@ -7,29 +7,78 @@ import android.os.IBinder
 import android.os.IInterface
 import android.os.ServiceManager
 import android.os.SystemProperties
+import android.util.Log
 import com.akuleshov7.ktoml.Toml
 import com.akuleshov7.ktoml.TomlIndentation
 import com.akuleshov7.ktoml.TomlInputConfig
 import com.akuleshov7.ktoml.TomlOutputConfig
 import com.akuleshov7.ktoml.annotations.TomlComments
+import io.github.a13e300.tricky_store.binder.BinderInterceptor
+import io.github.a13e300.tricky_store.keystore.AttestationTemplate
 import io.github.a13e300.tricky_store.keystore.CertHack
+import io.github.a13e300.tricky_store.keystore.KeyPairPool
+import io.github.a13e300.tricky_store.keystore.KeyboxRegistry
+import io.github.a13e300.tricky_store.trace.TransactionTrace
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.encodeToString
 import top.qwq2333.ohmykeymint.IOhMyKsService
 import top.qwq2333.ohmykeymint.IOhMySecurityLevel
 import java.io.File
+import java.util.concurrent.atomic.AtomicReference
 
 object Config {
-    private val hackPackages = mutableSetOf<String>()
-    private val generatePackages = mutableSetOf<String>()
+    private val defaultGeneratePackages = setOf("com.google.android.gsf", "com.google.android.gms", "com.android.vending")
+
+    private val policy = AtomicReference(
+        PolicySnapshot(emptySet(), defaultGeneratePackages, DeviceConfig(), PackageIndex.snapshot())
+    )
+
+    // recompile the policy with the given inputs replaced and publish it with a single swap
+    @Synchronized
+    private fun publish(
+        hackPackages: Set<String>? = null,
+        generatePackages: Set<String>? = null,
+        devConfig: DeviceConfig? = null,
+    ) {
+        val old = policy.get()
+        policy.set(
+            PolicySnapshot(
+                hackPackages ?: old.hackPackages,
+                generatePackages ?: old.generatePackages,
+                devConfig ?: old.devConfig,
+                PackageIndex.snapshot()
+            )
+        )
+        BinderInterceptor.updateUidFilter(policy.get().interceptedAppIds)
+        if (devConfig != null) {
+            // patch levels, os version and device ids are baked into the attestation template
+            AttestationTemplate.invalidate()
+            Logger.setLevel(logPriorityOf(devConfig.generalSettings.logLevel))
+            BinderInterceptor.updateDeadlines(devConfig.interceptDeadline.defaultMs, devConfig.interceptDeadline.methods)
+            TransactionTrace.setEnabled(devConfig.generalSettings.transactionTrace, File(root, "trace"))
+            KeyboxRegistry.setSelection(KeyboxRegistry.Selection.of(devConfig.generalSettings.keyboxSelection))
+            PersistentKeyStore.setEnabled(devConfig.keyCache.persist, File(root, "data/keys.db"))
+            Stats.setSnapshot(devConfig.generalSettings.statsSnapshotSeconds, File(root, "trace/stats.txt"))
+        }
+    }
+
+    private fun logPriorityOf(level: String) = when (level.lowercase()) {
+        "verbose" -> Log.VERBOSE
+        "debug" -> Log.DEBUG
+        "warn" -> Log.WARN
+        "error" -> Log.ERROR
+        else -> Log.INFO
+    }
+
+    fun onPackagesChanged() = publish()
 
     private fun updateTargetPackages(f: File?) = runCatching {
-        hackPackages.clear()
-        generatePackages.clear()
-        listOf("com.google.android.gsf", "com.google.android.gms", "com.android.vending").forEach { generatePackages.add(it) }
+        val hackPackages = mutableSetOf<String>()
+        val generatePackages = defaultGeneratePackages.toMutableSet()
         f?.readLines()?.forEach {
             if (it.isNotBlank() && !it.startsWith("#")) {
                 val n = it.trim()
@@ -37,6 +86,7 @@ object Config {
                 else hackPackages.add(n)
             }
         }
+        publish(hackPackages = hackPackages, generatePackages = generatePackages)
         Logger.i("update hack packages: $hackPackages, generate packages=$generatePackages")
     }.onFailure {
         Logger.e("failed to update target files", it)
@@ -72,21 +122,28 @@ object Config {
 
     fun initialize() {
         root.mkdirs()
+        // keybox parsing and the omk lookup do not depend on the policy, load them alongside
+        val keyboxLoad = CoroutineScope(Dispatchers.IO).async {
+            val keybox = File(root, KEYBOX_FILE)
+            if (!keybox.exists()) {
+                Logger.e("keybox file not found, please put it to $keybox !")
+            } else {
+                updateKeyBox(keybox)
+                StartupTimeline.mark("keybox loaded")
+            }
+        }
+        PackageIndex.initialize()
+        StartupTimeline.mark("packages loaded")
         val scope = File(root, TARGET_FILE)
         if (scope.exists()) {
             updateTargetPackages(scope)
         } else {
             Logger.e("target.txt file not found, please put it to $scope !")
         }
-        val keybox = File(root, KEYBOX_FILE)
-        if (!keybox.exists()) {
-            Logger.e("keybox file not found, please put it to $keybox !")
-        } else {
-            updateKeyBox(keybox)
-        }
 
         val fDevConfig = File(root, DEV_CONFIG_FILE)
         parseDevConfig(fDevConfig)
+        runBlocking { keyboxLoad.await() }
 
         ConfigObserver.startWatching()
     }
@@ -100,7 +157,7 @@ object Config {
                 )
             )
             if (p.waitFor() == 0) {
-                Logger.d("resetprop security_patch from ${Build.VERSION.SECURITY_PATCH} to ${devConfig.generalSettings.securityPatch}")
+                Logger.d { "resetprop security_patch from ${Build.VERSION.SECURITY_PATCH} to ${devConfig.generalSettings.securityPatch}" }
             }
         }.onFailure {
             Logger.e("", it)
@@ -153,11 +210,9 @@ object Config {
         false
     }.onFailure { Logger.e("failed to get packages", it) }.getOrNull() ?: false
 
-    fun needGenerate(callingUid: Int) = kotlin.runCatching {
-        if (generatePackages.isEmpty() && hackPackages.isEmpty()) return false
-        val ps = getPm()?.getPackagesForUid(callingUid)
-        ps?.any { it in generatePackages || it in hackPackages }
-    }.onFailure { Logger.e("failed to get packages", it) }.getOrNull() ?: false
+    fun decisionOf(callingUid: Int) = policy.get().decisionOf(callingUid)
+
+    fun needGenerate(callingUid: Int) = decisionOf(callingUid).generate
 
     private val toml = Toml(
         inputConfig = TomlInputConfig(
@@ -173,8 +228,8 @@ object Config {
         )
     )
 
-    var devConfig = DeviceConfig()
-        private set
+    val devConfig: DeviceConfig
+        get() = policy.get().devConfig
 
     @Serializable
     data class DeviceConfig(
@@ -183,13 +238,20 @@ object Config {
         val globalConfig: AppConfig = AppConfig(),
         @TomlComments("Disable specific module function for specific app.", "Do not modify if you know nothing about it.") val additionalAppConfig: Map<String, AppConfig> = mapOf(
             "com.example.app" to AppConfig(generateKey = true, createOperation = true, importKey = true)
-        )
+        ),
+        @TomlComments("Key pairs generated in background ahead of requests") val keyPairPool: KeyPairPoolSettings = KeyPairPoolSettings(),
+        @TomlComments("Limits of generated keys kept in memory, least recently used keys are dropped first") val keyCache: KeyCacheSettings = KeyCacheSettings(),
+        @TomlComments("Milliseconds keystore waits for the daemon before carrying on as if the call was not intercepted, 0 waits forever") val interceptDeadline: DeadlineSettings = DeadlineSettings(),
     ) {
         @Serializable
         data class General(
             @TomlComments("YYYY-MM-DD") val securityPatch: String = Build.VERSION.SECURITY_PATCH,
             @TomlComments("SDK Version (i.e.: 35 for Android 15)") val osVersion: Int = Build.VERSION.SDK_INT,
             @TomlComments("Auto reset the security patch props on startup") val autoResetProps: Boolean = true,
+            @TomlComments("verbose, debug, info, warn or error, release builds never log debug") val logLevel: String = if (BuildConfig.DEBUG) "debug" else "info",
+            @TomlComments("Record intercepted calls to trace/trace.bin, decode it with TraceDecoder") val transactionTrace: Boolean = true,
+            @TomlComments("Which keybox of an algorithm signs a request when keybox.xml has several: round-robin, pinned (per app) or lru") val keyboxSelection: String = "round-robin",
+            @TomlComments("Seconds between latency and cache stats written to trace/stats.txt, 0 to disable") val statsSnapshotSeconds: Int = 60,
         )
 
         @Serializable
@@ -206,6 +268,27 @@ object Config {
             val imei2: String = SystemProperties.get("ro.ril.oem.imei2", ""),
         )
 
+        @Serializable
+        data class KeyPairPoolSettings(
+            @TomlComments("Pooled EC P-256 key pairs, 0 to disable") val ecPoolSize: Int = 4,
+            @TomlComments("Pooled RSA-2048 key pairs with exponent 65537, 0 to disable") val rsaPoolSize: Int = 2,
+        )
+
+        @Serializable
+        data class KeyCacheSettings(
+            @TomlComments("Generated keys kept per app") val maxEntriesPerUid: Int = 256,
+            @TomlComments("Bytes of keys and certificates kept per app") val maxBytesPerUid: Long = 4L shl 20,
+            @TomlComments("Generated keys kept in all") val maxEntries: Int = 4096,
+            @TomlComments("Bytes of keys and certificates kept in all") val maxBytes: Long = 32L shl 20,
+            @TomlComments("Keep generated keys in data/keys.db so they survive daemon restarts") val persist: Boolean = true,
+        )
+
+        @Serializable
+        data class DeadlineSettings(
+            val defaultMs: Int = 2000,
+            @TomlComments("By method name, e.g. generateKey") val methods: Map<String, Int> = mapOf("generateKey" to 10000),
+        )
+
         @Serializable
         data class AppConfig(
             val generateKey: Boolean = true,
@@ -214,15 +297,11 @@ object Config {
         )
     }
 
-    fun isGenerateKeyEnabled(callingUid: Int) = devConfig.additionalAppConfig[callingUid.getPackageNameByUid()]?.generateKey != false && devConfig.globalConfig.generateKey
-
-    fun isCreateOperationEnabled(callingUid: Int) = devConfig.additionalAppConfig[callingUid.getPackageNameByUid()]?.createOperation != false && devConfig.globalConfig.createOperation
+    fun isGenerateKeyEnabled(callingUid: Int) = decisionOf(callingUid).generateKey
 
-    fun isImportKeyEnabled(callingUid: Int) = devConfig.additionalAppConfig[callingUid.getPackageNameByUid()]?.importKey != false && devConfig.globalConfig.importKey
+    fun isCreateOperationEnabled(callingUid: Int) = decisionOf(callingUid).createOperation
 
-    private fun Int.getPackageNameByUid() = runCatching {
-        getPm()?.getPackagesForUid(this)?.first()
-    }.getOrNull()
+    fun isImportKeyEnabled(callingUid: Int) = decisionOf(callingUid).importKey
 
     fun parseDevConfig(f: File?) = runCatching {
         f ?: return@runCatching
@@ -232,10 +311,11 @@ object Config {
             f.createNewFile()
             f.writeText(Toml.encodeToString(devConfig))
         } else {
-            devConfig = toml.decodeFromString(DeviceConfig.serializer(), f.readText())
+            publish(devConfig = toml.decodeFromString(DeviceConfig.serializer(), f.readText()))
             // in case there're new updates for device config
             f.writeText(Toml.encodeToString(devConfig))
         }
+        devConfig.keyPairPool.run { KeyPairPool.configure(ecPoolSize, rsaPoolSize) }
         resetProp()
         ConfigObserver.startWatching()
     }.onFailure {
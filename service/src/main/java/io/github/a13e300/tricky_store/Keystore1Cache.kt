@@ -0,0 +1,92 @@
+package io.github.a13e300.tricky_store
+
+import io.github.a13e300.tricky_store.keystore.CertHack
+import java.security.KeyPair
+import java.util.concurrent.Future
+
+/**
+ * What the Keystore1 flow keeps of a key between its generateKey, exportKey and attestKey calls,
+ * which may arrive on different binder threads. Bounded by the entry limits of the key cache,
+ * least recently used keys are dropped first, and dropped as soon as the app deletes them.
+ */
+object Keystore1Cache {
+    data class Key(val uid: Int, val alias: String)
+    data class Stats(val entries: Int, val evictions: Long)
+
+    private class State(val parameters: CertHack.KeyGenParameters) {
+        // generated speculatively from generateKey on, joined by exportKey and attestKey
+        var keyPair: Future<KeyPair?>? = null
+    }
+
+    // all state below is guarded by lock, the maps are access ordered for LRU eviction
+    private val lock = Any()
+    private val keys = LinkedHashMap<Key, State>(64, 0.75f, true)
+    private val byUid = HashMap<Int, LinkedHashMap<String, State>>()
+    private var evictions = 0L
+
+    /**
+     * Start over with the parameters of a key generated again under an existing alias.
+     */
+    fun putParameters(uid: Int, alias: String, parameters: CertHack.KeyGenParameters) {
+        val key = Key(uid, alias)
+        val state = State(parameters)
+        synchronized(lock) {
+            remove(key)
+            keys[key] = state
+            byUid.getOrPut(uid) { LinkedHashMap(16, 0.75f, true) }[alias] = state
+            trim(uid)
+        }
+    }
+
+    fun getParameters(uid: Int, alias: String): CertHack.KeyGenParameters? = get(Key(uid, alias))?.parameters
+
+    fun putKeyPair(uid: Int, alias: String, keyPair: Future<KeyPair?>) {
+        synchronized(lock) { get(Key(uid, alias))?.keyPair = keyPair }
+    }
+
+    /**
+     * Waits for a key pair still being generated, outside the lock.
+     */
+    fun getKeyPair(uid: Int, alias: String): KeyPair? =
+        synchronized(lock) { get(Key(uid, alias))?.keyPair }?.let { CertHack.joinKeyPair(it) }
+
+    fun delete(uid: Int, alias: String) {
+        synchronized(lock) { remove(Key(uid, alias)) }
+    }
+
+    fun deleteUid(uid: Int) {
+        synchronized(lock) {
+            byUid.remove(uid)?.keys?.forEach { keys.remove(Key(uid, it)) }
+        }
+    }
+
+    fun stats() = synchronized(lock) { Stats(keys.size, evictions) }
+
+    private fun get(key: Key): State? = synchronized(lock) {
+        byUid[key.uid]?.get(key.alias)
+        keys[key]
+    }
+
+    private fun remove(key: Key) {
+        keys.remove(key) ?: return
+        byUid[key.uid]?.let {
+            it.remove(key.alias)
+            if (it.isEmpty()) byUid.remove(key.uid)
+        }
+    }
+
+    // the entry that was just inserted is the most recently used one and is never evicted
+    private fun trim(uid: Int) {
+        val limits = Config.devConfig.keyCache
+        byUid[uid]?.let {
+            while (it.size > 1 && it.size > limits.maxEntriesPerUid) evict(Key(uid, it.keys.first()))
+        }
+        while (keys.size > 1 && keys.size > limits.maxEntries) evict(keys.keys.first())
+    }
+
+    private fun evict(key: Key) {
+        remove(key)
+        evictions++
+        Logger.d { "evicted keystore1 key uid=${key.uid} alias=${key.alias}" }
+    }
+}
@@ -4,10 +4,10 @@ import android.annotation.SuppressLint
 import android.os.IBinder
 import android.os.Parcel
 import android.os.ServiceManager
-import android.security.Credentials
 import android.security.KeyStore
 import android.security.keymaster.ExportResult
 import android.security.keymaster.KeyCharacteristics
+import android.security.keymaster.KeymasterArgument
 import android.security.keymaster.KeymasterArguments
 import android.security.keymaster.KeymasterCertificateChain
 import android.security.keymaster.KeymasterDefs
@@ -18,16 +18,15 @@ import android.security.keystore.IKeystoreService
 import android.security.keystore.KeystoreResponse
 import io.github.a13e300.tricky_store.binder.BinderInterceptor
 import io.github.a13e300.tricky_store.keystore.CertHack
+import io.github.a13e300.tricky_store.trace.TransactionTrace
 import top.qwq2333.ohmykeymint.CallerInfo
 import java.math.BigInteger
-import java.security.KeyPair
+import java.util.concurrent.CompletableFuture
 import java.util.Date
 import kotlin.system.exitProcess
 
 @SuppressLint("BlockedPrivateApi")
 object Keystore1Interceptor : BinderInterceptor() {
-    private val getTransaction =
-        getTransactCode(IKeystoreService.Stub::class.java, "get")
     private val generateKeyTransaction =
         getTransactCode(IKeystoreService.Stub::class.java, "generateKey")
     private val getKeyCharacteristicsTransaction =
@@ -36,14 +35,38 @@ object Keystore1Interceptor : BinderInterceptor() {
         getTransactCode(IKeystoreService.Stub::class.java, "exportKey")
     private val attestKeyTransaction =
         getTransactCode(IKeystoreService.Stub::class.java, "attestKey")
+    private val delTransaction =
+        getTransactCode(IKeystoreService.Stub::class.java, "del")
+    private val clearUidTransaction =
+        getTransactCode(IKeystoreService.Stub::class.java, "clear_uid")
     private lateinit var keystore: IBinder
 
     private const val DESCRIPTOR = "android.security.keystore.IKeystoreService"
 
-    private val KeyArguments = HashMap<Key, CertHack.KeyGenParameters>()
-    private val KeyPairs = HashMap<Key, KeyPair>()
+    // hidden accessors for the RSA public exponent, a ULONG tag none of the public getters read;
+    // resolved once instead of on every RSA generateKey
+    private val getArgumentByTag by lazy {
+        KeymasterArguments::class.java.getDeclaredMethod("getArgumentByTag", Int::class.javaPrimitiveType)
+            .apply { isAccessible = true }
+    }
+    private val getLongTagValue by lazy {
+        KeymasterArguments::class.java.getDeclaredMethod("getLongTagValue", KeymasterArgument::class.java)
+            .apply { isAccessible = true }
+    }
+
+    // key generation is answered up front, del and clear_uid are only watched to forget deleted
+    // keys
+    override val capabilities = Capabilities(
+        preCodes = intArrayOf(
+            generateKeyTransaction, getKeyCharacteristicsTransaction,
+            exportKeyTransaction, attestKeyTransaction,
+            delTransaction, clearUidTransaction
+        ),
+        // system_server clears the keys of uninstalled apps, and its uid is filtered out
+        anyUidCodes = intArrayOf(delTransaction, clearUidTransaction),
+    )
 
-    data class Key(val uid: Int, val alias: String)
+    override val stub: Class<*> = IKeystoreService.Stub::class.java
 
     override fun onPreTransact(
         target: IBinder,
@@ -54,15 +77,13 @@ object Keystore1Interceptor : BinderInterceptor() {
     ): Result {
         val callingUid = ctx.callingUid.toInt()
         ctx.callingPid.toInt()
+        if (code == delTransaction || code == clearUidTransaction) {
+            forget(code, callingUid, data)
+            return Skip
+        }
         if (CertHack.canHack()) {
-            if (code == getTransaction) {
-                if (Config.needHack(callingUid)) {
-                    return Continue
-                } else if (Config.needGenerate(callingUid)) {
-                    //needn't intercept getTransaction pre because it was stored in keystore
-                    return Skip
-                }
-            } else if (Config.needGenerate(callingUid)) {
+            val decision = traced(TransactionTrace.STAGE_POLICY) { Config.decisionOf(callingUid) }
+            if (decision.generate) {
                 when (code) {
                     generateKeyTransaction -> {
                         kotlin.runCatching {
@@ -83,18 +104,17 @@ object Keystore1Interceptor : BinderInterceptor() {
                                 kgp.certificateNotBefore = kma.getDate(KeymasterDefs.KM_TAG_ACTIVE_DATETIME, Date())
                                 if (kgp.algorithm == KeymasterDefs.KM_ALGORITHM_RSA) {
                                     try {
-                                        val getArgumentByTag = KeymasterArguments::class.java.getDeclaredMethods().first { it.name == "getArgumentByTag" }
-                                        getArgumentByTag.isAccessible = true
                                         val rsaArgument = getArgumentByTag.invoke(kma, KeymasterDefs.KM_TAG_RSA_PUBLIC_EXPONENT)
-
-                                        val getLongTagValue = KeymasterArguments::class.java.getDeclaredMethods().first { it.name == "getLongTagValue" }
-                                        getLongTagValue.isAccessible = true
                                         kgp.rsaPublicExponent = getLongTagValue.invoke(kma, rsaArgument) as BigInteger
                                     } catch (ex: Exception) {
                                         Logger.e("Read rsaPublicExponent error", ex)
                                     }
                                 }
-                                KeyArguments[Key(callingUid, alias)] = kgp
+                                Keystore1Cache.putParameters(callingUid, alias, kgp)
+                                // the app fetches the key pair next, symmetric keys never get here again
+                                if (kgp.algorithm == KeymasterDefs.KM_ALGORITHM_EC || kgp.algorithm == KeymasterDefs.KM_ALGORITHM_RSA) {
+                                    Keystore1Cache.putKeyPair(callingUid, alias, CertHack.generateKeyPairAsync(kgp, callingUid))
+                                }
                             }
 
                             val kc = KeyCharacteristics()
@@ -126,7 +146,7 @@ object Keystore1Interceptor : BinderInterceptor() {
                             Logger.i("getKeyCharacteristicsTransaction uid $callingUid alias $alias")
                             val kc = KeyCharacteristics()
                             val kma = KeymasterArguments()
-                            kma.addEnum(KeymasterDefs.KM_TAG_ALGORITHM, KeyArguments[Key(callingUid, alias)]!!.algorithm)
+                            kma.addEnum(KeymasterDefs.KM_TAG_ALGORITHM, Keystore1Cache.getParameters(callingUid, alias)!!.algorithm)
                             kc.swEnforced = KeymasterArguments()
                             kc.hwEnforced = kma
 
@@ -154,8 +174,10 @@ object Keystore1Interceptor : BinderInterceptor() {
                             val callback = IKeystoreExportKeyCallback.Stub.asInterface(data.readStrongBinder())
                             val alias = data.readString()!!.split("_")[1]
                             Logger.i("exportKeyTransaction uid $callingUid alias $alias")
-                            val kp = CertHack.generateKeyPair(KeyArguments[Key(callingUid, alias)]!!)
-                            KeyPairs[Key(callingUid, alias)] = kp!!
+                            val kp = traced(TransactionTrace.STAGE_CRYPTO) {
+                                Keystore1Cache.getKeyPair(callingUid, alias) ?: CertHack.generateKeyPair(Keystore1Cache.getParameters(callingUid, alias)!!)
+                                    ?.also { Keystore1Cache.putKeyPair(callingUid, alias, CompletableFuture.completedFuture(it)) }
+                            }!!
 
                             val erP = Parcel.obtain()
                             erP.writeInt(KeyStore.NO_ERROR)
@@ -194,10 +216,11 @@ object Keystore1Interceptor : BinderInterceptor() {
                                 val ksr = KeystoreResponse.CREATOR.createFromParcel(ksrP)
                                 ksrP.recycle()
 
-                                val key = Key(callingUid, alias)
-                                val ka = KeyArguments[key]!!
+                                val ka = Keystore1Cache.getParameters(callingUid, alias)!!
                                 ka.attestationChallenge = attestationChallenge
-                                val chain = CertHack.generateChain(callingUid, ka, KeyPairs[key]!!)
+                                val chain = traced(TransactionTrace.STAGE_CRYPTO) {
+                                    CertHack.generateChain(callingUid, ka, Keystore1Cache.getKeyPair(callingUid, alias)!!)
+                                }
 
                                 val kcc = KeymasterCertificateChain(chain)
                                 callback.onFinished(ksr, kcc)
@@ -217,55 +240,37 @@ object Keystore1Interceptor : BinderInterceptor() {
         return Skip
     }
 
-    override fun onPostTransact(
-        target: IBinder,
-        code: Int,
-        flags: Int,
-        ctx: CallerInfo,
-        data: Parcel,
-        reply: Parcel?,
-        resultCode: Int
-    ): Result {
-        val callingUid = ctx.callingUid.toInt()
-        val callingPid = ctx.callingPid.toInt()
-        if (target != keystore || code != getTransaction || reply == null) return Skip
-        if (kotlin.runCatching { reply.readException() }.exceptionOrNull() != null) return Skip
-        val p = Parcel.obtain()
-        Logger.d("intercept post $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()} replySz=${reply.dataSize()}")
-        try {
-            data.enforceInterface(DESCRIPTOR)
-            val alias = data.readString() ?: ""
-            var response = reply.createByteArray()
-            if (alias.startsWith(Credentials.USER_CERTIFICATE)) {
-                response = CertHack.hackCertificateChainUSR(response!!, alias.split("_")[1], callingUid)
-                Logger.i("hacked leaf of uid=$callingUid")
-                p.writeNoException()
-                p.writeByteArray(response)
-                return OverrideReply(0, p)
-            } else if (alias.startsWith(Credentials.CA_CERTIFICATE)) {
-                response = CertHack.hackCertificateChainCA(response!!, alias.split("_")[1], callingUid)
-                Logger.i("hacked caList of uid=$callingUid")
-                p.writeNoException()
-                p.writeByteArray(response)
-                return OverrideReply(0, p)
-            } else p.recycle()
-        } catch (t: Throwable) {
-            Logger.e("failed to hack certificate chain of uid=$callingUid pid=$callingPid!", t)
-            p.recycle()
+    // keystore still deletes whatever it has of the key, only our state of it is dropped here
+    private fun forget(code: Int, callingUid: Int, data: Parcel) = runCatching {
+        data.enforceInterface(DESCRIPTOR)
+        if (code == delTransaction) {
+            // every entry type of the alias is deleted one by one, all map to the same key
+            val alias = data.readString()?.split("_")?.getOrNull(1) ?: return@runCatching
+            Keystore1Cache.delete(callingUid, alias)
+        } else {
+            val uid = data.readLong()
+            Keystore1Cache.deleteUid(if (uid == -1L) callingUid else uid.toInt())
         }
-        return Skip
+    }.onFailure {
+        Logger.e("failed to read deleted key of uid=$callingUid", it)
     }
 
     private var triedCount = 0
     private var injected = false
 
-    fun tryRunKeystoreInterceptor(): Boolean {
+    /**
+     * [ready] is called once keystore is hooked, right before the first transaction can reach
+     * this interceptor.
+     */
+    fun tryRunKeystoreInterceptor(ready: () -> Unit = {}): Boolean {
         Logger.i("trying to register keystore interceptor ($triedCount) ...")
-        val b = ServiceManager.getService("android.security.keystore") ?: return false
+        // right after keystore died servicemanager may still hand out the dead instance
+        val b = ServiceManager.getService("android.security.keystore")?.takeIf { it.isBinderAlive } ?: return false
         val bd = getBinderBackdoor(b)
         if (bd == null) {
             // no binder hook, try inject
-            if (triedCount >= 3) {
+            // retried with backoff from 50ms to 1s, about 3.5 seconds in all
+            if (triedCount >= 8) {
                 Logger.e("tried injection but still has no backdoor, exit")
                 exitProcess(1)
             }
@@ -290,16 +295,26 @@ object Keystore1Interceptor : BinderInterceptor() {
             return false
         }
         keystore = b
+        ready()
         Logger.i("register for Keystore $keystore!")
         registerBinderInterceptor(bd, b, this)
         keystore.linkToDeath(Killer, 0)
         return true
     }
 
+    /**
+     * Forget the keystore that died, so the next [tryRunKeystoreInterceptor] injects its
+     * successor.
+     */
+    fun reset() {
+        triedCount = 0
+        injected = false
+    }
+
     object Killer : IBinder.DeathRecipient {
         override fun binderDied() {
-            Logger.d("keystore exit, daemon restart")
-            exitProcess(0)
+            Logger.i("keystore exit, waiting for it to come back")
+            onKeystoreDied()
         }
     }
 }
\ No newline at end of file
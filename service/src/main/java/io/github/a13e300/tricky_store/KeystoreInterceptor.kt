@@ -12,8 +12,9 @@ import android.system.keystore2.ResponseCode
 import io.github.a13e300.tricky_store.Cache.Key
 import io.github.a13e300.tricky_store.Config.getOmk
 import io.github.a13e300.tricky_store.binder.BinderInterceptor
+import io.github.a13e300.tricky_store.keystore.CryptoEngine
+import io.github.a13e300.tricky_store.trace.TransactionTrace
 import top.qwq2333.ohmykeymint.CallerInfo
-import java.security.cert.CertificateFactory
 import kotlin.system.exitProcess
 
 @SuppressLint("BlockedPrivateApi")
@@ -32,6 +33,12 @@ object KeystoreInterceptor : BinderInterceptor() {
     private var teeInterceptor: SecurityLevelInterceptor? = null
     private var strongBoxInterceptor: SecurityLevelInterceptor? = null
 
+    override val capabilities = Capabilities(
+        intArrayOf(getKeyEntryTransaction, updateSubcomponentTransaction, deleteKeyTransaction)
+    )
+
+    override val stub: Class<*> = IKeystoreService.Stub::class.java
+
     override fun onPreTransact(
         target: IBinder,
         code: Int,
@@ -41,9 +48,10 @@ object KeystoreInterceptor : BinderInterceptor() {
     ): Result {
         val callingUid = ctx.callingUid.toInt()
         val callingPid = ctx.callingPid.toInt()
-        if (!Config.needGenerate(callingUid)) return Skip
+        val decision = traced(TransactionTrace.STAGE_POLICY) { Config.decisionOf(callingUid) }
+        if (!decision.generate) return Skip
         val omk = getOmk()
-        Logger.d("KeystoreInceptor onPreTransact code=$code")
+        Logger.d { "KeystoreInceptor onPreTransact code=$code" }
         when (code) {
             /*            getSecurityLevelTransaction -> {
                             omk ?: return Skip
@@ -58,68 +66,68 @@ object KeystoreInterceptor : BinderInterceptor() {
                             }
                         }*/
             getKeyEntryTransaction -> {
-                Logger.d("KeystoreInceptor getKeyEntryTransaction pre $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}")
-                if (Config.needGenerate(callingUid))
-                    runCatching {
-                        data.enforceInterface(IKeystoreService.DESCRIPTOR)
-                        if (!Config.isGenerateKeyEnabled(callingUid)) {
-                            Logger.d("generateKey feature disabled for $callingUid")
-                            return Skip
-                        }
+                Logger.d { "KeystoreInceptor getKeyEntryTransaction pre $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}" }
+                runCatching {
+                    data.enforceInterface(IKeystoreService.DESCRIPTOR)
+                    if (!decision.generateKey) {
+                        Logger.d { "generateKey feature disabled for $callingUid" }
+                        return Skip
+                    }
 
-                        val descriptor =
-                            data.readTypedObject(KeyDescriptor.CREATOR)
+                    val descriptor =
+                        data.readTypedObject(KeyDescriptor.CREATOR)
 
-                        if (descriptor == null) {
-                            Logger.d("descriptor is null, skipping")
-                            return Skip
-                        }
+                    if (descriptor == null) {
+                        Logger.d("descriptor is null, skipping")
+                        return Skip
+                    }
 
-                        val p = Parcel.obtain()
+                    val p = Parcel.obtain()
 
-                        if (omk != null) {
-                            val response = omk.getKeyEntry(ctx, descriptor)
-                            p.writeNoException()
-                            p.writeTypedObject(response, 0)
-                            return OverrideReply(0, p)
-                        }
+                    if (omk != null) {
+                        delegated()
+                        val response = omk.getKeyEntry(ctx, descriptor)
+                        p.writeNoException()
+                        p.writeTypedObject(response, 0)
+                        return OverrideReply(0, p)
+                    }
 
-                        val response =
-                            Cache.getKeyResponse(callingUid, descriptor.alias)
-
-                        if (response != null) {
-                            Logger.i("generate key for uid=$callingUid alias=${descriptor.alias}")
-                            p.writeNoException()
-                            p.writeTypedObject(response, 0)
-                        } else {
-                            Logger.d("key not found for uid=$callingUid alias=${descriptor.alias}")
-                            // We skip system uid requests because tricky store obviously does not store every keys
-                            // and it may cause issues with system services expecting certain keys to be present.
-                            // like lockscreen keys.
-                            if (callingUid == 1000) {
-                                Logger.d("system uid requesting generated key alias=${descriptor.alias}")
-                                return Skip
-                            }
-                            p.writeException(
-                                ServiceSpecificException(
-                                    ResponseCode.KEY_NOT_FOUND,
-                                    "key not found for uid=$callingUid alias=${descriptor.alias}"
-                                )
-                            )
-                        }
+                    val response =
+                        Cache.getKeyResponse(callingUid, descriptor.alias)
 
-                        return OverrideReply(0, p)
-                    }.onFailure {
-                        Logger.e("", it)
+                    if (response != null) {
+                        Logger.i("generate key for uid=$callingUid alias=${descriptor.alias}")
+                        p.writeNoException()
+                        p.writeTypedObject(response, 0)
+                    } else {
+                        Logger.d { "key not found for uid=$callingUid alias=${descriptor.alias}" }
+                        // We skip system uid requests because tricky store obviously does not store every keys
+                        // and it may cause issues with system services expecting certain keys to be present.
+                        // like lockscreen keys.
+                        if (callingUid == 1000) {
+                            Logger.d { "system uid requesting generated key alias=${descriptor.alias}" }
+                            return Skip
+                        }
+                        p.writeException(
+                            ServiceSpecificException(
+                                ResponseCode.KEY_NOT_FOUND,
+                                "key not found for uid=$callingUid alias=${descriptor.alias}"
+                            )
+                        )
                     }
+
+                    return OverrideReply(0, p)
+                }.onFailure {
+                    Logger.e("", it)
+                }
             }
 
             updateSubcomponentTransaction -> {
-                Logger.d("KeystoreInceptor onPreTransact updateSubcomponent uid=$callingUid pid=$callingPid")
+                Logger.d { "KeystoreInceptor onPreTransact updateSubcomponent uid=$callingUid pid=$callingPid" }
                 runCatching {
                     data.enforceInterface(IKeystoreService.DESCRIPTOR)
-                    if (!Config.isImportKeyEnabled(callingUid)) {
-                        Logger.d("importKey feature disabled for $callingUid")
+                    if (!decision.importKey) {
+                        Logger.d { "importKey feature disabled for $callingUid" }
                         return Skip
                     }
                     val descriptor =
@@ -128,6 +136,7 @@ object KeystoreInterceptor : BinderInterceptor() {
                     val certificateChain = data.createByteArray()
 
                     if (omk != null) {
+                        delegated()
                         omk.updateSubcomponent(
                             ctx,
                             descriptor,
@@ -143,14 +152,13 @@ object KeystoreInterceptor : BinderInterceptor() {
                     }
 
                     if (certificateChain != null) {
-                        Logger.d("updateSubcomponent certificateChain sz=${certificateChain.size}")
+                        Logger.d { "updateSubcomponent certificateChain sz=${certificateChain.size}" }
                     }
 
                     if (publicCert != null) {
-                        val cf: CertificateFactory = CertificateFactory.getInstance("X.509")
-                        val cert = cf.generateCertificate(publicCert.inputStream())
+                        val cert = CryptoEngine.certificateFactory().generateCertificate(publicCert.inputStream())
 
-                        Logger.d("$cert")
+                        Logger.d { "$cert" }
 
                         Cache.finalizedImportedKey(callingUid, callingPid, cert)
                         Logger.i("store public cert uid=$callingUid alias=${descriptor.alias} sz=${publicCert.size}")
@@ -161,11 +169,12 @@ object KeystoreInterceptor : BinderInterceptor() {
             }
 
             deleteKeyTransaction -> {
-                Logger.d("KeystoreInceptor onPreTransact deleteKeyTransaction uid=$callingUid pid=$callingPid")
+                Logger.d { "KeystoreInceptor onPreTransact deleteKeyTransaction uid=$callingUid pid=$callingPid" }
                 data.enforceInterface("android.system.keystore2.IKeystoreService")
                 val keyDescriptor = data.readTypedObject(KeyDescriptor.CREATOR) ?: return Skip
 
                 if (omk != null) {
+                    delegated()
                     omk.deleteKey(ctx, keyDescriptor)
 
                     Parcel.obtain().apply {
@@ -175,7 +184,7 @@ object KeystoreInterceptor : BinderInterceptor() {
                     }
                 }
 
-                Logger.d("KeystoreInterceptor deleteKey uid=$callingUid alias=${keyDescriptor.alias}")
+                Logger.d { "KeystoreInterceptor deleteKey uid=$callingUid alias=${keyDescriptor.alias}" }
 
                 Cache.deleteKey(Key(callingUid, keyDescriptor.alias))
                 Cache.deleteImportedKey(callingUid, callingPid)
@@ -186,16 +195,28 @@ object KeystoreInterceptor : BinderInterceptor() {
         return Skip
     }
 
+    fun securityLevelOf(level: Int) = when (level) {
+        SecurityLevel.TRUSTED_ENVIRONMENT -> teeInterceptor?.original
+        SecurityLevel.STRONGBOX -> strongBoxInterceptor?.original
+        else -> null
+    }
+
     private var triedCount = 0
     private var injected = false
 
-    fun tryRunKeystoreInterceptor(): Boolean {
+    /**
+     * [ready] is called once keystore is hooked, right before the first transaction can reach
+     * this interceptor.
+     */
+    fun tryRunKeystoreInterceptor(ready: () -> Unit = {}): Boolean {
         Logger.i("trying to register keystore interceptor ($triedCount) ...")
-        val b = ServiceManager.getService("android.system.keystore2.IKeystoreService/default") ?: return false
+        // right after keystore died servicemanager may still hand out the dead instance
+        val b = ServiceManager.getService("android.system.keystore2.IKeystoreService/default")?.takeIf { it.isBinderAlive } ?: return false
         val bd = getBinderBackdoor(b)
         if (bd == null) {
             // no binder hook, try inject
-            if (triedCount >= 3) {
+            // retried with backoff from 50ms to 1s, about 3.5 seconds in all
+            if (triedCount >= 8) {
                 Logger.e("tried injection but still has no backdoor, exit")
                 exitProcess(1)
             }
@@ -225,6 +246,7 @@ object KeystoreInterceptor : BinderInterceptor() {
         val strongBox =
             kotlin.runCatching { ks.getSecurityLevel(SecurityLevel.STRONGBOX) }.getOrNull()
         keystore = b
+        ready()
         Logger.i("register for Keystore $keystore!")
         registerBinderInterceptor(bd, b, this)
         keystore.linkToDeath(Killer, 0)
@@ -244,13 +266,26 @@ object KeystoreInterceptor : BinderInterceptor() {
         } else {
             Logger.i("no StrongBox SecurityLevel found!")
         }
+        // keys cached before keystore restarted still point at the old security levels
+        Cache.rebindSecurityLevels()
         return true
     }
 
+    /**
+     * Forget the keystore that died, so the next [tryRunKeystoreInterceptor] injects its
+     * successor.
+     */
+    fun reset() {
+        triedCount = 0
+        injected = false
+        teeInterceptor = null
+        strongBoxInterceptor = null
+    }
+
     object Killer : IBinder.DeathRecipient {
         override fun binderDied() {
-            Logger.d("keystore exit, daemon restart")
-            exitProcess(0)
+            Logger.i("keystore exit, waiting for it to come back")
+            onKeystoreDied()
         }
     }
 }
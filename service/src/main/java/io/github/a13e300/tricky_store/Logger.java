@@ -2,34 +2,64 @@ package io.github.a13e300.tricky_store;
 
 import android.util.Log;
 
+import java.util.function.Supplier;
+
 public class Logger {
     private static final String TAG = "TrickyStore";
+
+    // lowest android.util.Log priority that is written, set from devconfig.toml
+    private static volatile int level = Log.DEBUG;
+
+    public static void setLevel(int priority) {
+        level = priority;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
     public static void d(String msg) {
-        Log.d(TAG, msg);
+        if (isLoggable(Log.DEBUG)) Log.d(TAG, msg);
+    }
+
+    /**
+     * The message is only built when debug logging is on. Release builds drop debug calls
+     * together with their arguments, so prefer this over concatenating on hot paths.
+     */
+    public static void d(Supplier<String> msg) {
+        if (isLoggable(Log.DEBUG)) Log.d(TAG, msg.get());
     }
 
     public static void d(String tag, String msg) {
-        Log.d(TAG, tag + ": " + msg);
+        if (isLoggable(Log.DEBUG)) Log.d(TAG, tag + ": " + msg);
     }
 
     public static void dd(String msg) {
         d("wtf: " + msg);
     }
 
+    public static void dd(Supplier<String> msg) {
+        if (isLoggable(Log.DEBUG)) Log.d(TAG, "wtf: " + msg.get());
+    }
+
     public static void e(String msg) {
-        Log.e(TAG, msg);
+        if (isLoggable(Log.ERROR)) Log.e(TAG, msg);
     }
 
     public static void e(String msg, Throwable t) {
-        Log.e(TAG, "wtf: " + msg, t);
+        if (isLoggable(Log.ERROR)) Log.e(TAG, "wtf: " + msg, t);
     }
 
     public static void e(String tag, String msg, Throwable t) {
-        Log.e(TAG, tag + ": " + msg, t);
+        if (isLoggable(Log.ERROR)) Log.e(TAG, tag + ": " + msg, t);
     }
 
     public static void i(String msg) {
-        Log.i(TAG, msg);
+        if (isLoggable(Log.INFO)) Log.i(TAG, msg);
+    }
+
+    public static void w(String msg) {
+        if (isLoggable(Log.WARN)) Log.w(TAG, msg);
     }
 
 }
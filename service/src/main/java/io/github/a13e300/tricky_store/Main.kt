@@ -2,28 +2,76 @@ package io.github.a13e300.tricky_store
 
 import java.io.File
 import java.security.MessageDigest
+import java.util.concurrent.Semaphore
+import kotlin.concurrent.thread
 import kotlin.system.exitProcess
 import android.os.Build
+import android.os.SystemClock
+import android.os.ServiceManager
+import io.github.a13e300.tricky_store.binder.BinderInterceptor
 
 fun main(args: Array<String>) {
+    StartupTimeline.mark("main")
     verifySelf()
     Logger.i("Welcome to TrickyStore!")
+    // policy and keyboxes load while keystore comes up and gets injected, interception only
+    // starts once they are in place
+    val config = thread(name = "ConfigLoader") {
+        Config.initialize()
+        StartupTimeline.mark("config loaded")
+    }
+    val keystore1 = Build.VERSION.SDK_INT == Build.VERSION_CODES.Q || Build.VERSION.SDK_INT == Build.VERSION_CODES.R
+    val service = if (keystore1) "android.security.keystore" else "android.system.keystore2.IKeystoreService/default"
+    waitForService(service)
+    StartupTimeline.mark("keystore available")
+    attach(keystore1) { config.join() }
+    StartupTimeline.mark("intercepting")
+    StartupTimeline.log()
+    while (true) {
+        keystoreDied.acquire()
+        // keyboxes, policy and caches stay as they are, only the new keystore needs hooking
+        val start = SystemClock.elapsedRealtime()
+        BinderInterceptor.reset()
+        if (keystore1) Keystore1Interceptor.reset() else KeystoreInterceptor.reset()
+        waitForService(service)
+        attach(keystore1) {}
+        StartupTimeline.mark("re-attached")
+        Logger.i("re-attached to keystore in ${SystemClock.elapsedRealtime() - start}ms")
+    }
+}
+
+private val keystoreDied = Semaphore(0)
+
+/**
+ * Called from the death recipient of keystore, the main thread waits for its successor and
+ * hooks it again.
+ */
+fun onKeystoreDied() {
+    StartupTimeline.mark("keystore died")
+    keystoreDied.release()
+}
+
+private fun attach(keystore1: Boolean, ready: () -> Unit) {
+    var retryMs = 50L
     while (true) {
-        if (Build.VERSION.SDK_INT == Build.VERSION_CODES.Q || Build.VERSION.SDK_INT == Build.VERSION_CODES.R) {
-            if (!Keystore1Interceptor.tryRunKeystoreInterceptor()) {
-                Thread.sleep(1000)
-                continue
-            }
+        val registered = if (keystore1) {
+            Keystore1Interceptor.tryRunKeystoreInterceptor(ready)
         } else {
-            if (!KeystoreInterceptor.tryRunKeystoreInterceptor()) {
-                Thread.sleep(1000)
-                continue
-            }
-        }
-        Config.initialize()
-        while (true) {
-            Thread.sleep(1000000)
+            KeystoreInterceptor.tryRunKeystoreInterceptor(ready)
         }
+        if (registered) return
+        // the injected hook installs its backdoor shortly after inject returns
+        Thread.sleep(retryMs)
+        retryMs = (retryMs * 2).coerceAtMost(1000)
+    }
+}
+
+private fun waitForService(name: String) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+        // woken by servicemanager's registration callback
+        ServiceManager.waitForService(name)
+    } else {
+        while (ServiceManager.checkService(name) == null) Thread.sleep(50)
     }
 }
 
@@ -0,0 +1,107 @@
+package io.github.a13e300.tricky_store
+
+import android.os.FileObserver
+import android.util.SparseArray
+import io.github.a13e300.tricky_store.keystore.ApplicationIdCache
+import java.io.File
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * In-process uid -> packages index built from /data/system/packages.list, so that policy checks on
+ * binder threads never have to wait for system_server. Only misses fall back to the package manager.
+ */
+object PackageIndex {
+    private const val PER_USER_RANGE = 100000
+    private const val PACKAGES_DIR = "/data/system"
+    private const val PACKAGES_LIST = "packages.list"
+
+    // appId -> packages, replaced as a whole on every reload
+    @Volatile
+    private var index = SparseArray<Array<String>>()
+
+    // uid -> packages resolved through the package manager, dropped on every reload
+    private val fallback = ConcurrentHashMap<Int, Array<String>>()
+
+    @Volatile
+    var generation = 0
+        private set
+
+    object PackagesObserver : FileObserver(File(PACKAGES_DIR), CLOSE_WRITE or MOVED_TO) {
+        override fun onEvent(event: Int, path: String?) {
+            if (path == PACKAGES_LIST) reload()
+        }
+    }
+
+    fun initialize() {
+        reload()
+        PackagesObserver.startWatching()
+    }
+
+    fun snapshot(): SparseArray<Array<String>> = index
+
+    /**
+     * null if the uid has no packages or the package manager could not tell, only the packages
+     * it did return are remembered so a lookup that failed, e.g. during boot, is tried again.
+     */
+    fun getPackagesForUid(uid: Int): Array<String>? {
+        val packages = index[uid % PER_USER_RANGE] ?: fallback[uid] ?: run {
+            runCatching { Config.getPm()?.getPackagesForUid(uid) }
+                .onFailure { Logger.e("failed to get packages for uid=$uid", it) }
+                .getOrNull()
+                ?.takeIf { it.isNotEmpty() }
+                ?.also { fallback[uid] = it }
+        }
+        return packages?.takeIf { it.isNotEmpty() }
+    }
+
+    @Synchronized
+    private fun reload() = runCatching {
+        val map = FileChannel.open(File(PACKAGES_DIR, PACKAGES_LIST).toPath(), StandardOpenOption.READ).use {
+            parse(it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()))
+        }
+        val newIndex = SparseArray<Array<String>>(map.size)
+        map.forEach { (appId, packages) -> newIndex.put(appId, packages.toTypedArray()) }
+        index = newIndex
+        fallback.clear()
+        generation++
+        ApplicationIdCache.clear()
+        Logger.i("package index loaded: ${newIndex.size()} uids")
+        Config.onPackagesChanged()
+    }.onFailure {
+        Logger.e("failed to load $PACKAGES_LIST", it)
+    }
+
+    // each line is "<name> <uid> <debuggable> <dataDir> <seinfo> <gids> ...", we only need the first two
+    private fun parse(buf: MappedByteBuffer): Map<Int, MutableList<String>> {
+        val result = HashMap<Int, MutableList<String>>()
+        val limit = buf.limit()
+        var pos = 0
+        while (pos < limit) {
+            val nameStart = pos
+            while (pos < limit && buf.get(pos) != ' '.code.toByte() && buf.get(pos) != '\n'.code.toByte()) pos++
+            val nameEnd = pos
+            var uid = -1
+            if (pos < limit && buf.get(pos) == ' '.code.toByte()) {
+                pos++
+                while (pos < limit) {
+                    val c = buf.get(pos) - '0'.code.toByte()
+                    if (c !in 0..9) break
+                    uid = (if (uid < 0) 0 else uid) * 10 + c
+                    pos++
+                }
+            }
+            while (pos < limit && buf.get(pos) != '\n'.code.toByte()) pos++
+            pos++
+            if (uid < 0 || nameEnd == nameStart) continue
+            val name = ByteArray(nameEnd - nameStart).also {
+                buf.position(nameStart)
+                buf.get(it)
+            }.toString(Charsets.UTF_8)
+            result.getOrPut(uid % PER_USER_RANGE) { ArrayList(1) }.add(name)
+        }
+        return result
+    }
+}
@@ -0,0 +1,370 @@
+package io.github.a13e300.tricky_store
+
+import android.os.Parcel
+import android.system.keystore2.KeyEntryResponse
+import android.system.keystore2.KeyMetadata
+import io.github.a13e300.tricky_store.Cache.Info
+import io.github.a13e300.tricky_store.Cache.Key
+import io.github.a13e300.tricky_store.keystore.CryptoEngine
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.security.KeyPair
+import java.security.spec.PKCS8EncodedKeySpec
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+
+/**
+ * Generated keys on disk, so apps keep their keys when the daemon restarts. Records are appended
+ * to a log that is memory mapped when opened. Only the uid, alias and nspace of each record are
+ * read then; the key pair, chain and metadata are decoded the first time the alias is asked for.
+ * The log is rewritten without replaced and deleted records once they outweigh the live ones.
+ */
+object PersistentKeyStore {
+    private const val MAGIC = 0x54534b53 // TSKS
+    private const val VERSION = 1
+    private const val HEADER_SIZE = 8
+    // body length and crc32 of the body
+    private const val RECORD_HEADER_SIZE = 8
+    private const val OP_PUT: Byte = 1
+    private const val OP_DELETE: Byte = 2
+    private const val NO_NSPACE = Long.MIN_VALUE
+    private const val MIN_GARBAGE_BYTES = 64 * 1024L
+    private const val PER_USER_RANGE = 100000
+    private const val FIRST_APPLICATION_UID = 10000
+
+    private class Location(val offset: Long, val size: Int, val nspace: Long)
+
+    private data class Owner(val uid: Int, val nspace: Long)
+
+    // appends and compaction, in the order keys were put and deleted
+    private val writer = Executors.newSingleThreadExecutor {
+        Thread(it, "KeyStoreWriter").apply { isDaemon = true }
+    }
+
+    // all state below is guarded by lock
+    private val lock = Any()
+    private var file: File? = null
+    private var channel: FileChannel? = null
+    private var mapped: MappedByteBuffer? = null
+    private val index = HashMap<Key, Location>()
+    // the keys of index by the uid and nspace they were put with
+    private val byNspace = HashMap<Owner, HashSet<Key>>()
+    private var liveBytes = 0L
+    private var compactionQueued = false
+    // keys deleted whose tombstone the writer has not appended yet, hidden from load
+    private val pendingDeletes = HashMap<Key, Int>()
+
+    fun setEnabled(enabled: Boolean, file: File) = writer.execute {
+        runCatching {
+            synchronized(lock) {
+                when {
+                    !enabled -> close()
+                    this.file != file -> open(file)
+                }
+            }
+        }.onFailure {
+            Logger.e("failed to open key store $file", it)
+            synchronized(lock) { close() }
+        }
+    }
+
+    fun put(info: Info) {
+        val record = runCatching { encode(info) }.onFailure {
+            Logger.e("failed to encode key uid=${info.key.uid} alias=${info.key.alias}", it)
+        }.getOrNull() ?: return
+        val nspace = info.response.metadata?.key?.nspace ?: NO_NSPACE
+        writer.execute { append(info.key, record, nspace) }
+    }
+
+    fun delete(key: Key) {
+        // gone for load right away, a put still queued ahead of the tombstone stays hidden too
+        val stored = synchronized(lock) {
+            pendingDeletes[key] = (pendingDeletes[key] ?: 0) + 1
+            index.containsKey(key).also { removeLocation(key) }
+        }
+        writer.execute {
+            synchronized(lock) {
+                if (stored || index.containsKey(key)) append(key, encodeDelete(key), NO_NSPACE)
+                val pending = pendingDeletes.getValue(key) - 1
+                if (pending == 0) {
+                    pendingDeletes.remove(key)
+                } else {
+                    pendingDeletes[key] = pending
+                }
+            }
+        }
+    }
+
+    /**
+     * The key as it was last put, null if it was never put or has been deleted since.
+     */
+    fun load(key: Key): Info? {
+        val bytes = synchronized(lock) {
+            if (key in pendingDeletes) return null
+            val location = index[key] ?: return null
+            read(location)
+        } ?: return null
+        return runCatching { decode(key, bytes) }.onFailure {
+            Logger.e("failed to decode stored key uid=${key.uid} alias=${key.alias}", it)
+        }.getOrNull()
+    }
+
+    fun load(uid: Int, nspace: Long): List<Info> {
+        val keys = synchronized(lock) {
+            byNspace[Owner(uid, nspace)]?.filter { it !in pendingDeletes }
+        } ?: return emptyList()
+        return keys.mapNotNull { load(it) }
+    }
+
+    private fun open(file: File) {
+        close()
+        file.parentFile?.mkdirs()
+        val channel = RandomAccessFile(file, "rw").channel
+        if (channel.size() < HEADER_SIZE || !hasHeader(channel)) {
+            // only a cache of keys apps can generate again, start over rather than give up
+            if (channel.size() > 0) Logger.w("unknown key store format, starting over: $file")
+            channel.truncate(0)
+            channel.write(header(), 0)
+        }
+        val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        this.file = file
+        this.channel = channel
+        mapped = buffer
+        val end = scan(buffer)
+        if (end < channel.size()) {
+            // a record cut short by a crash, everything before it is intact
+            Logger.w("dropping ${channel.size() - end} bytes of torn records from $file")
+            channel.truncate(end)
+        }
+        Logger.i("key store opened with ${index.size} keys")
+        compactIfNeeded()
+    }
+
+    private fun header() = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).also { it.flip() }
+
+    private fun hasHeader(channel: FileChannel): Boolean {
+        val header = ByteBuffer.allocate(HEADER_SIZE)
+        channel.read(header, 0)
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+    }
+
+    private fun close() {
+        channel?.close()
+        channel = null
+        mapped = null
+        file = null
+        index.clear()
+        byNspace.clear()
+        liveBytes = 0
+    }
+
+    // index every intact record, returns where the intact ones end
+    private fun scan(buffer: ByteBuffer): Long {
+        index.clear()
+        byNspace.clear()
+        liveBytes = 0
+        var offset = HEADER_SIZE
+        val crc = CRC32()
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            val size = buffer.getInt(offset)
+            val bodyStart = offset + RECORD_HEADER_SIZE
+            if (size <= 0 || bodyStart + size > buffer.capacity()) break
+            crc.reset()
+            crc.update(buffer.duplicate().apply {
+                position(bodyStart)
+                limit(bodyStart + size)
+            })
+            if (crc.value.toInt() != buffer.getInt(offset + 4)) break
+            val body = buffer.duplicate().apply { position(bodyStart) }
+            val op = body.get()
+            val key = Key(body.int, readString(body))
+            val nspace = body.long
+            removeLocation(key)
+            if (op == OP_PUT) addLocation(key, Location(offset.toLong(), RECORD_HEADER_SIZE + size, nspace))
+            offset = bodyStart + size
+        }
+        return offset.toLong()
+    }
+
+    private fun append(key: Key, body: ByteArray, nspace: Long) = runCatching {
+        synchronized(lock) {
+            val channel = channel ?: return@runCatching
+            val crc = CRC32().apply { update(body) }
+            val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.size)
+                .putInt(body.size).putInt(crc.value.toInt()).put(body).also { it.flip() }
+            val offset = channel.size()
+            channel.write(record, offset)
+            removeLocation(key)
+            if (body[0] == OP_PUT) addLocation(key, Location(offset, RECORD_HEADER_SIZE + body.size, nspace))
+            compactIfNeeded()
+        }
+    }.onFailure {
+        Logger.e("failed to store key uid=${key.uid} alias=${key.alias}", it)
+    }
+
+    private fun addLocation(key: Key, location: Location) {
+        index[key] = location
+        byNspace.getOrPut(Owner(key.uid, location.nspace)) { HashSet() }.add(key)
+        liveBytes += location.size
+    }
+
+    private fun removeLocation(key: Key) {
+        val location = index.remove(key) ?: return
+        val owner = Owner(key.uid, location.nspace)
+        byNspace[owner]?.let {
+            it.remove(key)
+            if (it.isEmpty()) byNspace.remove(owner)
+        }
+        liveBytes -= location.size
+    }
+
+    // copies the record out of the mapping, remapped when it was appended after the last map
+    private fun read(location: Location): ByteArray? {
+        val channel = channel ?: return null
+        val end = location.offset + location.size
+        val buffer = mapped?.takeIf { it.capacity() >= end }
+            ?: channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).also { mapped = it }
+        val bytes = ByteArray(location.size - RECORD_HEADER_SIZE)
+        buffer.duplicate().apply { position((location.offset + RECORD_HEADER_SIZE).toInt()) }.get(bytes)
+        return bytes
+    }
+
+    private fun needsCompaction(): Boolean {
+        val channel = channel ?: return false
+        val garbage = channel.size() - HEADER_SIZE - liveBytes
+        return garbage >= MIN_GARBAGE_BYTES && garbage >= liveBytes
+    }
+
+    // called under lock, the compaction itself runs as the next task of the writer
+    private fun compactIfNeeded() {
+        if (compactionQueued || !needsCompaction()) return
+        compactionQueued = true
+        writer.execute {
+            runCatching { compact() }.onFailure { Logger.e("failed to compact key store", it) }
+        }
+    }
+
+    // only deletes can land while the copy is written without the lock, appends and reopening
+    // run on the writer like this does, and the tombstones of those deletes are queued behind it
+    private fun compact() {
+        // keystore drops the keys of uninstalled apps, a reused uid must not see them. Only
+        // packages.list decides, a failed package manager call must not cost an app its keys, and
+        // before it is loaded every uid would look uninstalled
+        val packages = PackageIndex.snapshot().takeIf { PackageIndex.generation > 0 && it.size() > 0 }
+        val file: File
+        val before: Long
+        val buffer: ByteBuffer
+        val live: List<Pair<Key, Location>>
+        synchronized(lock) {
+            compactionQueued = false
+            if (!needsCompaction()) return
+            val channel = channel!!
+            file = this.file!!
+            before = channel.size()
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, before)
+            live = index.map { it.key to it.value }
+        }
+        val tmp = File(file.path + ".tmp")
+        var kept = 0
+        RandomAccessFile(tmp, "rw").channel.use { out ->
+            out.truncate(0)
+            out.write(header())
+            live.forEach { (key, location) ->
+                val appId = key.uid % PER_USER_RANGE
+                if (packages != null && appId >= FIRST_APPLICATION_UID && packages[appId] == null) return@forEach
+                out.write(buffer.duplicate().apply {
+                    position(location.offset.toInt())
+                    limit((location.offset + location.size).toInt())
+                })
+                kept++
+            }
+            out.force(true)
+        }
+        synchronized(lock) {
+            close()
+            if (!tmp.renameTo(file)) {
+                tmp.delete()
+                Logger.e("failed to replace $file with its compacted copy")
+            }
+            open(file)
+            Logger.i("key store compacted from $before to ${this.channel?.size()} bytes, $kept keys")
+        }
+    }
+
+    private fun encode(info: Info): ByteArray {
+        val metadata = Parcel.obtain()
+        val encodedMetadata = try {
+            metadata.writeTypedObject(info.response.metadata, 0)
+            metadata.marshall()
+        } finally {
+            metadata.recycle()
+        }
+        val out = ByteArrayOutputStream()
+        DataOutputStream(out).use {
+            writeHeader(it, OP_PUT, info.key, info.response.metadata?.key?.nspace ?: NO_NSPACE)
+            writeString(it, info.keyPair.private.algorithm)
+            writeBytes(it, info.keyPair.private.encoded)
+            it.writeInt(info.chain.size)
+            info.chain.forEach { cert -> writeBytes(it, cert.encoded) }
+            writeBytes(it, encodedMetadata)
+        }
+        return out.toByteArray()
+    }
+
+    private fun encodeDelete(key: Key): ByteArray {
+        val out = ByteArrayOutputStream()
+        DataOutputStream(out).use { writeHeader(it, OP_DELETE, key, NO_NSPACE) }
+        return out.toByteArray()
+    }
+
+    private fun decode(key: Key, bytes: ByteArray): Info {
+        val body = ByteBuffer.wrap(bytes)
+        body.get()
+        body.int
+        readString(body)
+        body.long
+        val algorithm = readString(body)
+        val privateKey = CryptoEngine.keyFactory(algorithm).generatePrivate(PKCS8EncodedKeySpec(readBytes(body)))
+        val chain = List(body.int) {
+            CryptoEngine.certificateFactory().generateCertificate(readBytes(body).inputStream())
+        }
+        val parcel = Parcel.obtain()
+        val metadata = try {
+            val encoded = readBytes(body)
+            parcel.unmarshall(encoded, 0, encoded.size)
+            parcel.setDataPosition(0)
+            parcel.readTypedObject(KeyMetadata.CREATOR)
+        } finally {
+            parcel.recycle()
+        }
+        val response = KeyEntryResponse().apply {
+            this.metadata = metadata
+            // the security level binder of the previous keystore is gone, hand out the current one
+            iSecurityLevel = metadata?.let { KeystoreInterceptor.securityLevelOf(it.keySecurityLevel) }
+        }
+        return Info(key, KeyPair(chain.first().publicKey, privateKey), chain, response)
+    }
+
+    private fun writeHeader(out: DataOutputStream, op: Byte, key: Key, nspace: Long) {
+        out.writeByte(op.toInt())
+        out.writeInt(key.uid)
+        writeString(out, key.alias)
+        out.writeLong(nspace)
+    }
+
+    private fun writeString(out: DataOutputStream, value: String) = writeBytes(out, value.toByteArray())
+
+    private fun writeBytes(out: DataOutputStream, value: ByteArray) {
+        out.writeInt(value.size)
+        out.write(value)
+    }
+
+    private fun readString(buffer: ByteBuffer) = String(readBytes(buffer))
+
+    private fun readBytes(buffer: ByteBuffer) = ByteArray(buffer.int).also { buffer.get(it) }
+}
@@ -0,0 +1,84 @@
+package io.github.a13e300.tricky_store
+
+import android.util.SparseArray
+import android.util.SparseIntArray
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Immutable compilation of target.txt and devconfig.toml. A new instance is published by [Config]
+ * whenever one of its inputs changes, so binder threads only ever do a single lock-free read.
+ */
+class PolicySnapshot(
+    val hackPackages: Set<String>,
+    val generatePackages: Set<String>,
+    val devConfig: Config.DeviceConfig,
+    packages: SparseArray<Array<String>>,
+) {
+    @JvmInline
+    value class Decision(val bits: Int) {
+        val generate get() = bits and GENERATE != 0
+        val hack get() = bits and HACK != 0
+        val generateKey get() = bits and GENERATE_KEY != 0
+        val createOperation get() = bits and CREATE_OPERATION != 0
+        val importKey get() = bits and IMPORT_KEY != 0
+    }
+
+    companion object {
+        private const val PER_USER_RANGE = 100000
+
+        const val GENERATE = 1
+        const val HACK = 1 shl 1
+        const val GENERATE_KEY = 1 shl 2
+        const val CREATE_OPERATION = 1 shl 3
+        const val IMPORT_KEY = 1 shl 4
+    }
+
+    // appId -> decision bits for every uid known to the package index
+    private val decisions = SparseIntArray(packages.size()).also {
+        for (i in 0 until packages.size()) {
+            it.put(packages.keyAt(i), compute(packages.valueAt(i)))
+        }
+    }
+
+    /**
+     * appIds the native hook should still forward to the interceptors: every appId that would get
+     * at least [GENERATE], plus the ones missing from the package index whose decision is not known
+     * yet. null while the index is empty.
+     */
+    val interceptedAppIds: BitSet? = if (packages.size() == 0) null else BitSet(PER_USER_RANGE).also {
+        it.set(0, PER_USER_RANGE)
+        for (i in 0 until decisions.size()) {
+            if (decisions.valueAt(i) and GENERATE == 0) it.clear(decisions.keyAt(i))
+        }
+    }
+
+    // uid -> decision bits for uids that were missing from the package index
+    private val lateDecisions = ConcurrentHashMap<Int, Int>()
+
+    fun decisionOf(uid: Int): Decision {
+        val bits = decisions.get(uid % PER_USER_RANGE, -1)
+        if (bits >= 0) return Decision(bits)
+        lateDecisions[uid]?.let { return Decision(it) }
+        val packages = PackageIndex.getPackagesForUid(uid)
+        val computed = compute(packages)
+        // unknown packages may only mean the package manager is not up yet, ask again next time
+        if (packages != null) lateDecisions[uid] = computed
+        return Decision(computed)
+    }
+
+    private fun compute(packages: Array<String>?): Int {
+        var bits = 0
+        if (packages != null) {
+            if (packages.any { it in generatePackages || it in hackPackages }) bits = bits or GENERATE
+            if (packages.any { it in hackPackages }) bits = bits or HACK
+        }
+        // per-app switches are looked up by the first package of the uid
+        val app = packages?.firstOrNull()?.let { devConfig.additionalAppConfig[it] }
+        val global = devConfig.globalConfig
+        if (app?.generateKey != false && global.generateKey) bits = bits or GENERATE_KEY
+        if (app?.createOperation != false && global.createOperation) bits = bits or CREATE_OPERATION
+        if (app?.importKey != false && global.importKey) bits = bits or IMPORT_KEY
+        return bits
+    }
+}
@@ -2,30 +2,27 @@ package io.github.a13e300.tricky_store
 
 import android.hardware.security.keymint.Algorithm
 import android.hardware.security.keymint.KeyParameter
-import android.hardware.security.keymint.KeyParameterValue
-import android.hardware.security.keymint.Tag
 import android.os.IBinder
 import android.os.Parcel
 import android.system.keystore2.AuthenticatorSpec
-import android.system.keystore2.Authorization
 import android.system.keystore2.CreateOperationResponse
 import android.system.keystore2.IKeystoreOperation
 import android.system.keystore2.IKeystoreSecurityLevel
 import android.system.keystore2.KeyDescriptor
 import android.system.keystore2.KeyEntryResponse
-import android.system.keystore2.KeyMetadata
 import io.github.a13e300.tricky_store.Config.getOhMySecurityLevel
 import io.github.a13e300.tricky_store.binder.BinderInterceptor
 import io.github.a13e300.tricky_store.keystore.CertHack
+import io.github.a13e300.tricky_store.keystore.CryptoEngine
 import io.github.a13e300.tricky_store.keystore.Utils
+import io.github.a13e300.tricky_store.trace.TransactionTrace
 import top.qwq2333.ohmykeymint.CallerInfo
-import java.security.KeyFactory
 import java.security.PrivateKey
 import java.security.Signature
 import java.security.cert.Certificate
 
 class SecurityLevelInterceptor(
-    private val original: IKeystoreSecurityLevel, private val level: Int
+    val original: IKeystoreSecurityLevel, private val level: Int
 ) : BinderInterceptor() {
     companion object {
         private val createOperationTransaction =
@@ -41,21 +38,34 @@ class SecurityLevelInterceptor(
 
     }
 
+    override val capabilities = Capabilities(
+        intArrayOf(
+            createOperationTransaction, generateKeyTransaction, importKeyTransaction,
+            importWrappedKeyTransaction, deleteKeyTransaction
+        )
+    )
+
+    override val stub: Class<*> = IKeystoreSecurityLevel.Stub::class.java
+
+    // SecurityLevel.TRUSTED_ENVIRONMENT and STRONGBOX match the trace targets
+    override val traceTarget: Int get() = level
+
     override fun onPreTransact(
         target: IBinder, code: Int, flags: Int, ctx: CallerInfo, data: Parcel
     ): Result {
         val callingUid = ctx.callingUid.toInt()
         val callingPid = ctx.callingPid.toInt()
-        Logger.d("SecurityLevelInterceptor received onPreTransact code=$code uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}")
-        if (!Config.needGenerate(callingUid)) return Skip
+        Logger.d { "SecurityLevelInterceptor received onPreTransact code=$code uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}" }
+        val decision = traced(TransactionTrace.STAGE_POLICY) { Config.decisionOf(callingUid) }
+        if (!decision.generate) return Skip
         val securityLevel = getOhMySecurityLevel(level)
 
         when (code) {
             generateKeyTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
                 Logger.i("intercept key gen uid=$callingUid pid=$callingPid")
-                if (!Config.isGenerateKeyEnabled(callingUid)) {
-                    Logger.d("generateKey feature disabled for $callingUid")
+                if (!decision.generateKey) {
+                    Logger.d { "generateKey feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -66,6 +76,7 @@ class SecurityLevelInterceptor(
                 val entropy = data.createByteArray()!!
 
                 val response = if (securityLevel != null) {
+                    delegated()
                     securityLevel.generateKey(
                         ctx,
                         keyDescriptor,
@@ -77,8 +88,15 @@ class SecurityLevelInterceptor(
                 } else {
                     val kgp = CertHack.KeyGenParameters(params)
                     // Logger.e("warn: attestation key not supported now")
-                    val pair = CertHack.generateKeyPair(callingUid, keyDescriptor, attestationKeyDescriptor, kgp) ?: return@runCatching
+                    val pair = traced(TransactionTrace.STAGE_CRYPTO) {
+                        CertHack.generateKeyPair(callingUid, keyDescriptor, attestationKeyDescriptor, kgp)
+                    } ?: return@runCatching
                     val response = buildResponse(pair.second, kgp, attestationKeyDescriptor ?: keyDescriptor)
+                    if (pastDeadline()) {
+                        // keystore generated the key itself, ours must not shadow it
+                        Logger.w("key gen of uid=$callingUid alias=${keyDescriptor.alias} finished past its deadline, dropped")
+                        return Skip
+                    }
                     Cache.putKey(callingUid, keyDescriptor.alias, pair.first, pair.second, response)
                     response.metadata
                 }
@@ -93,8 +111,8 @@ class SecurityLevelInterceptor(
 
             importKeyTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
-                if (!Config.isImportKeyEnabled(callingUid)) {
-                    Logger.d("importKey feature disabled for $callingUid")
+                if (!decision.importKey) {
+                    Logger.d { "importKey feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -105,6 +123,7 @@ class SecurityLevelInterceptor(
                 val keyData = data.createByteArray() // pkcs8 format raw key bits
 
                 if (securityLevel != null) {
+                    delegated()
                     val response = securityLevel.importKey(
                         ctx,
                         keyDescriptor,
@@ -129,11 +148,11 @@ class SecurityLevelInterceptor(
 
 
                 val privateKey = if (kgp.algorithm == Algorithm.EC) {
-                    KeyFactory.getInstance("EC").generatePrivate(
+                    CryptoEngine.keyFactory("EC").generatePrivate(
                         java.security.spec.PKCS8EncodedKeySpec(keyData)
                     )
                 } else if (kgp.algorithm == Algorithm.RSA) {
-                    KeyFactory.getInstance("RSA").generatePrivate(
+                    CryptoEngine.keyFactory("RSA").generatePrivate(
                         java.security.spec.PKCS8EncodedKeySpec(keyData)
                     )
                 } else {
@@ -142,14 +161,16 @@ class SecurityLevelInterceptor(
                 }
 
                 Cache.preImportedKey(callingUid, callingPid, privateKey) {
-                    val pair = CertHack.generateKeyPairWithImportedKey(keyDescriptor, kgp) {
-                        val pair = Cache.getImportedKey(callingUid, callingPid) ?: return@generateKeyPairWithImportedKey null
-                        Pair(pair.first.first, pair.second)
+                    val pair = traced(TransactionTrace.STAGE_CRYPTO) {
+                        CertHack.generateKeyPairWithImportedKey(keyDescriptor, kgp) {
+                            val imported = Cache.getImportedKey(callingUid, callingPid) ?: return@generateKeyPairWithImportedKey null
+                            Pair(imported.privateKey, imported.certificate)
+                        }
                     }
                     val response = buildResponse(pair.second, kgp, attestationKeyDescriptor ?: keyDescriptor)
                     Cache.putKey(callingUid, keyDescriptor.alias, pair.first, pair.second, response)
 
-                    Logger.d("imported key generated uid=$callingUid alias=${keyDescriptor.alias}")
+                    Logger.d { "imported key generated uid=$callingUid alias=${keyDescriptor.alias}" }
                 }
 
                 return Skip
@@ -159,9 +180,9 @@ class SecurityLevelInterceptor(
 
             createOperationTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
-                Logger.d("createOperationTransaction uid=$callingUid pid=$callingPid")
-                if (!Config.isCreateOperationEnabled(callingUid)) {
-                    Logger.d("createOperation feature disabled for $callingUid")
+                Logger.d { "createOperationTransaction uid=$callingUid pid=$callingPid" }
+                if (!decision.createOperation) {
+                    Logger.d { "createOperation feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -171,6 +192,7 @@ class SecurityLevelInterceptor(
                 val kgp = CertHack.KeyGenParameters(params)
 
                 if (securityLevel != null) {
+                    delegated()
                     val response = securityLevel.createOperation(
                         ctx,
                         keyDescriptor,
@@ -188,7 +210,7 @@ class SecurityLevelInterceptor(
                 kgp.purpose.any { it == 2 /* sign */ || it == 7 /* attest */ } ||
                         throw IllegalArgumentException("unsupported purpose ${kgp.purpose}")
                 kgp.digest.forEach {
-                    Logger.d("digest: $it")
+                    Logger.d { "digest: $it" }
                 }
                 val algorithm = when (kgp.algorithm) {
                     Algorithm.EC -> "ECDSA"
@@ -203,13 +225,13 @@ class SecurityLevelInterceptor(
                 }
                 infos.filter { it.response.metadata.key.alias == keyDescriptor.alias }.let {
                     it.forEach {
-                        Logger.d("found key alias=${it.key.alias} uid=${it.key.uid} actual=${it.response.metadata.key.alias}")
-                        Logger.d("createOperation", it.chain.first().toString())
+                        Logger.d { "found key alias=${it.key.alias} uid=${it.key.uid} actual=${it.response.metadata.key.alias}" }
+                        Logger.d { "createOperation: ${it.chain.first()}" }
                     }
                 }
-                Logger.d("found keys number: ${infos.size}")
+                Logger.d { "found keys number: ${infos.size}" }
                 val info = infos.first { it.response.metadata.key.alias == keyDescriptor.alias && it.keyPair.private.algorithm == algorithm }
-                Logger.d("createOperation", info.chain.first().toString())
+                Logger.d { "createOperation: ${info.chain.first()}" }
                 val op = KeyStoreOperation(info.keyPair.private, "SHA256with$algorithm")
                 val parcel = Parcel.obtain()
                 parcel.writeNoException()
@@ -225,8 +247,8 @@ class SecurityLevelInterceptor(
 
             importWrappedKeyTransaction -> runCatching {
                 data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
-                if (!Config.isImportKeyEnabled(callingUid)) {
-                    Logger.d("importKey feature disabled for $callingUid")
+                if (!decision.importKey) {
+                    Logger.d { "importKey feature disabled for $callingUid" }
                     return Skip
                 }
 
@@ -237,6 +259,7 @@ class SecurityLevelInterceptor(
                 val authenticators = data.createTypedArray(AuthenticatorSpec.CREATOR) ?: return Skip
 
                 if (securityLevel != null) {
+                    delegated()
                     val response = securityLevel.importWrappedKey(
                         ctx,
                         key,
@@ -258,6 +281,7 @@ class SecurityLevelInterceptor(
                 val key = data.readTypedObject(KeyDescriptor.CREATOR) ?: return Skip
 
                 if (securityLevel != null) {
+                    delegated()
                     securityLevel.deleteKey(key)
 
                     val p = Parcel.obtain()
@@ -274,8 +298,8 @@ class SecurityLevelInterceptor(
         var isAborted = false
 
         constructor(privateKey: PrivateKey, algorithm: String) {
-            Logger.d("KeyStoreOperation using algorithm $algorithm, privateKey=${privateKey.algorithm}")
-            signature = Signature.getInstance(algorithm)
+            Logger.d { "KeyStoreOperation using algorithm $algorithm, privateKey=${privateKey.algorithm}" }
+            signature = CryptoEngine.newSignature(algorithm)
             signature.initSign(privateKey)
         }
 
@@ -286,14 +310,14 @@ class SecurityLevelInterceptor(
 
         override fun update(input: ByteArray): ByteArray? {
             if (isAborted) throw IllegalStateException("operation aborted")
-            Logger.d("update called with ${input.size} bytes")
+            Logger.d { "update called with ${input.size} bytes" }
             signature.update(input)
             return null
         }
 
         override fun finish(input: ByteArray?, signature: ByteArray?): ByteArray? {
             if (isAborted) throw IllegalStateException("operation aborted")
-            Logger.d("finish called with ${input?.size ?: 0} bytes")
+            Logger.d { "finish called with ${input?.size ?: 0} bytes" }
             this.signature.update(input)
             return this.signature.sign()
         }
@@ -308,67 +332,7 @@ class SecurityLevelInterceptor(
         chain: List<Certificate>,
         params: CertHack.KeyGenParameters,
         descriptor: KeyDescriptor
-    ): KeyEntryResponse {
-        val response = KeyEntryResponse()
-        val metadata = KeyMetadata()
-        metadata.keySecurityLevel = level
-        Utils.putCertificateChain(metadata, chain.toTypedArray<Certificate>())
-        val d = KeyDescriptor()
-        d.domain = descriptor.domain
-        d.nspace = descriptor.nspace
-        metadata.key = d
-        val authorizations = ArrayList<Authorization>()
-        var a: Authorization
-        for (i in params.purpose) {
-            a = Authorization()
-            a.keyParameter = KeyParameter()
-            a.keyParameter.tag = Tag.PURPOSE
-            a.keyParameter.value = KeyParameterValue.keyPurpose(i)
-            a.securityLevel = level
-            authorizations.add(a)
-        }
-        for (i in params.digest) {
-            a = Authorization()
-            a.keyParameter = KeyParameter()
-            a.keyParameter.tag = Tag.DIGEST
-            a.keyParameter.value = KeyParameterValue.digest(i)
-            a.securityLevel = level
-            authorizations.add(a)
-        }
-        a = Authorization()
-        a.keyParameter = KeyParameter()
-        a.keyParameter.tag = Tag.ALGORITHM
-        a.keyParameter.value = KeyParameterValue.algorithm(params.algorithm)
-        a.securityLevel = level
-        authorizations.add(a)
-        a = Authorization()
-        a.keyParameter = KeyParameter()
-        a.keyParameter.tag = Tag.KEY_SIZE
-        a.keyParameter.value = KeyParameterValue.integer(params.keySize)
-        a.securityLevel = level
-        authorizations.add(a)
-        a = Authorization()
-        a.keyParameter = KeyParameter()
-        a.keyParameter.tag = Tag.EC_CURVE
-        a.keyParameter.value = KeyParameterValue.ecCurve(params.ecCurve)
-        a.securityLevel = level
-        authorizations.add(a)
-        a = Authorization()
-        a.keyParameter = KeyParameter()
-        a.keyParameter.tag = Tag.NO_AUTH_REQUIRED
-        a.keyParameter.value = KeyParameterValue.boolValue(true) // TODO: copy
-        a.securityLevel = level
-        authorizations.add(a)
-        // TODO: ORIGIN
-        //OS_VERSION
-        //OS_PATCHLEVEL
-        //VENDOR_PATCHLEVEL
-        //BOOT_PATCHLEVEL
-        //CREATION_DATETIME
-        //USER_ID
-        metadata.authorizations = authorizations.toTypedArray<Authorization>()
-        response.metadata = metadata
-        response.iSecurityLevel = original
-        return response
+    ): KeyEntryResponse = Utils.buildKeyEntryResponse(chain, params, descriptor, level).apply {
+        iSecurityLevel = original
     }
 }
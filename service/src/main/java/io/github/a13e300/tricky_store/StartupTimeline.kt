@@ -0,0 +1,33 @@
+package io.github.a13e300.tricky_store
+
+import android.os.Process
+import android.os.SystemClock
+import java.io.PrintWriter
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Milestones of daemon startup and of keystore restarts in milliseconds since boot, logged once
+ * keystore is intercepted and kept for the stats dump. A milestone reached again, e.g. after every
+ * keystore restart, only keeps its latest time.
+ */
+object StartupTimeline {
+    // milestone -> elapsedRealtime it was last reached
+    private val marks = ConcurrentHashMap<String, Long>()
+
+    fun mark(name: String) {
+        marks[name] = SystemClock.elapsedRealtime()
+    }
+
+    fun log() = Logger.i("startup: " + format().joinToString())
+
+    fun dump(pw: PrintWriter) {
+        pw.println("startup: " + format().joinToString())
+    }
+
+    // the daemon's own share is measured from when its process was forked
+    private fun format(): List<String> {
+        val start = Process.getStartElapsedRealtime()
+        return listOf("process ${start}ms") + marks.entries.sortedBy { it.value }
+            .map { (name, at) -> "$name ${at}ms (+${at - start})" }
+    }
+}
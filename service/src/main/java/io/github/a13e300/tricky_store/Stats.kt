@@ -0,0 +1,64 @@
+package io.github.a13e300.tricky_store
+
+import io.github.a13e300.tricky_store.binder.BinderInterceptor
+import io.github.a13e300.tricky_store.keystore.ApplicationIdCache
+import io.github.a13e300.tricky_store.keystore.KeyPairPool
+import io.github.a13e300.tricky_store.trace.TransactionTrace
+import java.io.File
+import java.io.PrintWriter
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Daemon wide counters next to the per interceptor latency histograms, answered on
+ * [BinderInterceptor.DUMP_STATS_TRANSACTION] and snapshotted to a file in the background.
+ */
+object Stats {
+    private val snapshotter = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "StatsSnapshot").apply { isDaemon = true }
+    }
+    private var snapshotTask: ScheduledFuture<*>? = null
+
+    init {
+        BinderInterceptor.statsDumper = ::dumpCounters
+    }
+
+    private fun dumpCounters(pw: PrintWriter) {
+        val cache = Cache.stats()
+        pw.println("key cache: entries=${cache.entries} bytes=${cache.bytes} uids=${cache.uids} hits=${cache.hits} misses=${cache.misses} restored=${cache.restored} evictions=${cache.evictions}")
+        val keystore1 = Keystore1Cache.stats()
+        pw.println("keystore1 keys: entries=${keystore1.entries} evictions=${keystore1.evictions}")
+        pw.println("imported keys: reclaimed=${Cache.getReclaimedImportedKeys()}")
+        pw.println("key pair pool: depth=${KeyPairPool.getDepth()} hits=${KeyPairPool.getHits()} misses=${KeyPairPool.getMisses()}")
+        pw.println("application id cache: hits=${ApplicationIdCache.getHits()} misses=${ApplicationIdCache.getMisses()}")
+        pw.println("transaction trace: dropped=${TransactionTrace.getDropped()}")
+        StartupTimeline.dump(pw)
+    }
+
+    /**
+     * Rewrite [file] with a full dump every [intervalSeconds], 0 stops.
+     */
+    @Synchronized
+    fun setSnapshot(intervalSeconds: Int, file: File) {
+        snapshotTask?.cancel(false)
+        snapshotTask = null
+        if (intervalSeconds <= 0) return
+        snapshotTask = snapshotter.scheduleWithFixedDelay(
+            { snapshot(file) }, intervalSeconds.toLong(), intervalSeconds.toLong(), TimeUnit.SECONDS
+        )
+    }
+
+    private fun snapshot(file: File) = runCatching {
+        file.parentFile?.mkdirs()
+        // written aside and renamed so readers never see a partial dump
+        val tmp = File(file.path + ".tmp")
+        PrintWriter(tmp).use {
+            it.println("# ${System.currentTimeMillis()}")
+            BinderInterceptor.dumpStats(it)
+        }
+        tmp.renameTo(file)
+    }.onFailure {
+        Logger.e("failed to snapshot stats", it)
+    }
+}
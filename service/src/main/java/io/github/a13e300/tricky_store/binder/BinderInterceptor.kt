@@ -3,8 +3,17 @@ package io.github.a13e300.tricky_store.binder
 import android.os.Binder
 import android.os.IBinder
 import android.os.Parcel
+import android.os.SystemClock
 import io.github.a13e300.tricky_store.Logger
+import io.github.a13e300.tricky_store.getTransactCode
+import io.github.a13e300.tricky_store.trace.LatencyHistogram
+import io.github.a13e300.tricky_store.trace.TransactionTrace
 import top.qwq2333.ohmykeymint.CallerInfo
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 open class BinderInterceptor : Binder() {
     sealed class Result
@@ -13,7 +22,28 @@ open class BinderInterceptor : Binder() {
     data class OverrideData(val data: Parcel) : Result()
     data class OverrideReply(val code: Int = 0, val reply: Parcel) : Result()
 
+    /**
+     * Callbacks the native hook makes for this interceptor, every other transaction is forwarded
+     * to the target without a round-trip. [preCodes] go through [onPreTransact], [postCodes] through
+     * [onPostTransact] once the target replied, null means all codes. Without [needReply] the post
+     * callback gets no reply.
+     */
+    class Capabilities(
+        val preCodes: IntArray?,
+        val postCodes: IntArray? = intArrayOf(),
+        val needReply: Boolean = false,
+        // pre or post codes forwarded for every uid, even ones the uid filter leaves out
+        val anyUidCodes: IntArray = intArrayOf(),
+    )
+
     companion object {
+        // private code answered with the text of [dumpStats], only for root and shell
+        const val DUMP_STATS_TRANSACTION = 0x53544154 // STAT
+
+        const val PATH_LOCAL = 0
+        const val PATH_OMK = 1
+        private val PATH_NAMES = arrayOf("local", "omk")
+
         fun getBinderBackdoor(b: IBinder): IBinder? {
             val data = Parcel.obtain()
             val reply = Parcel.obtain()
@@ -33,95 +63,331 @@ open class BinderInterceptor : Binder() {
             }
         }
 
+        // reused by every callback on the same binder thread, only valid until the callback returns
+        private val callerInfo = ThreadLocal.withInitial {
+            CallerInfo().apply { callingSid = "reserved" }
+        }
+
+        @Volatile
+        private var backdoor: IBinder? = null
+
+        @Volatile
+        private var uidFilter: BitSet? = null
+
+        // target -> interceptor of every registration, deadlines are pushed per target
+        private val registrations = ConcurrentHashMap<IBinder, BinderInterceptor>()
+
+        // set once a callback hands its call over to OhMyKeymint, picks the histogram it lands in
+        private val delegated = ThreadLocal.withInitial { BooleanArray(1) }
+
+        // daemon wide counters appended to every stats dump
+        @Volatile
+        var statsDumper: ((PrintWriter) -> Unit)? = null
+
+        /**
+         * Latency percentiles of every registered interceptor per transaction code and path,
+         * followed by what [statsDumper] prints.
+         */
+        fun dumpStats(pw: PrintWriter) {
+            registrations.values.distinct().forEach { it.dumpLatencies(pw) }
+            hookExpired()?.let { pw.println("hook deadlines expired: $it") }
+            statsDumper?.invoke(pw)
+        }
+
+        // callbacks the native hook stopped waiting for, null while there is no hook to ask
+        private fun hookExpired(): Long? {
+            val backdoor = backdoor ?: return null
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            return try {
+                if (backdoor.transact(6, data, reply, 0)) reply.readLong() else null
+            } catch (t: Throwable) {
+                Logger.e("failed to read hook stats", t)
+                null
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+        }
+
+        @Volatile
+        private var defaultDeadlineMs = 0
+
+        @Volatile
+        private var methodDeadlinesMs = emptyMap<String, Int>()
+
         fun registerBinderInterceptor(backdoor: IBinder, target: IBinder, interceptor: BinderInterceptor) {
             val data = Parcel.obtain()
             val reply = Parcel.obtain()
-            data.writeStrongBinder(target)
-            data.writeStrongBinder(interceptor)
-            backdoor.transact(1, data, reply, 0)
+            try {
+                data.writeStrongBinder(target)
+                data.writeStrongBinder(interceptor)
+                interceptor.capabilities.let {
+                    data.writeIntArray(it.preCodes)
+                    data.writeIntArray(it.postCodes)
+                    data.writeInt(if (it.needReply) 1 else 0)
+                    data.writeIntArray(it.anyUidCodes)
+                }
+                backdoor.transact(1, data, reply, 0)
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+            registrations[target] = interceptor
+            pushDeadlines(backdoor, target, interceptor)
+            if (this.backdoor !== backdoor) {
+                this.backdoor = backdoor
+                uidFilter?.let { pushUidFilter(backdoor, it) }
+            }
+        }
+
+        /**
+         * Let the native hook pass transactions of uids outside [appIds] straight to keystore,
+         * null disables the filter and every transaction is sent to the interceptors again.
+         */
+        fun updateUidFilter(appIds: BitSet?) {
+            uidFilter = appIds
+            backdoor?.let { pushUidFilter(it, appIds) }
+        }
+
+        /**
+         * Forget the hook of a keystore that died. The next registration hands the uid filter and
+         * deadlines to the hook of its successor.
+         */
+        @Synchronized
+        fun reset() {
+            backdoor = null
+            registrations.clear()
+        }
+
+        /**
+         * Milliseconds keystore waits for a callback before carrying on as if it was skipped, by
+         * method name with [defaultMs] for every other one. 0 waits forever.
+         */
+        fun updateDeadlines(defaultMs: Int, perMethodMs: Map<String, Int>) {
+            defaultDeadlineMs = defaultMs
+            methodDeadlinesMs = perMethodMs
+            val backdoor = backdoor ?: return
+            registrations.forEach { (target, interceptor) -> pushDeadlines(backdoor, target, interceptor) }
+        }
+
+        private fun pushDeadlines(backdoor: IBinder, target: IBinder, interceptor: BinderInterceptor) {
+            // keystore and keystore2 do not share method names, unknown ones are ignored
+            val byCode = interceptor.stub?.let { stub ->
+                methodDeadlinesMs.mapNotNull { (method, ms) ->
+                    runCatching { getTransactCode(stub, method) to ms }.getOrNull()
+                }.toMap()
+            } ?: emptyMap()
+            interceptor.deadlines = Deadlines(defaultDeadlineMs, byCode)
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            try {
+                data.writeStrongBinder(target)
+                data.writeInt(defaultDeadlineMs)
+                data.writeInt(byCode.size)
+                byCode.forEach { (code, ms) ->
+                    data.writeInt(code)
+                    data.writeInt(ms)
+                }
+                backdoor.transact(5, data, reply, 0)
+            } catch (t: Throwable) {
+                Logger.e("failed to push deadlines", t)
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
         }
+
+        private fun pushUidFilter(backdoor: IBinder, appIds: BitSet?) {
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            try {
+                data.writeLongArray(appIds?.toLongArray())
+                backdoor.transact(3, data, reply, 0)
+                Logger.d { "uid filter pushed: ${appIds?.cardinality() ?: "disabled"}" }
+            } catch (t: Throwable) {
+                Logger.e("failed to push uid filter", t)
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+        }
+    }
+
+    open val capabilities: Capabilities get() = Capabilities(null, null, true)
+
+    // the AIDL stub the transaction codes belong to, lets deadlines be configured by method name
+    open val stub: Class<*>? get() = null
+
+    // which keystore service the transactions are recorded against in the trace
+    open val traceTarget: Int get() = TransactionTrace.TARGET_KEYSTORE
+
+    private class Deadlines(val defaultMs: Int, val byCode: Map<Int, Int>) {
+        fun of(code: Int) = byCode[code] ?: defaultMs
+    }
+
+    @Volatile
+    private var deadlines = Deadlines(0, emptyMap())
+
+    // code * 2 + path -> callback latency
+    private val latencies = ConcurrentHashMap<Int, LatencyHistogram>()
+
+    /**
+     * Mark the running callback as answered by OhMyKeymint instead of locally.
+     */
+    protected fun delegated() {
+        delegated.get()!![0] = true
+    }
+
+    private fun dumpLatencies(pw: PrintWriter) {
+        val names = stub?.declaredFields?.filter { it.name.startsWith("TRANSACTION_") }?.associate {
+            it.isAccessible = true
+            it.getInt(null) to it.name.removePrefix("TRANSACTION_")
+        } ?: emptyMap()
+        pw.println("${javaClass.simpleName} (target $traceTarget):")
+        pw.println("  method path count p50_us p90_us p99_us max_us")
+        latencies.toSortedMap().forEach { (key, histogram) ->
+            val code = key / 2
+            val s = histogram.snapshot()
+            pw.println(
+                "  ${names[code] ?: code} ${PATH_NAMES[key % 2]} ${s.count} " +
+                        "${s.percentile(50.0)} ${s.percentile(90.0)} ${s.percentile(99.0)} ${s.max}"
+            )
+        }
+        expiries().forEach { (code, count) -> pw.println("  ${names[code] ?: code} expired $count") }
+    }
+
+    private val expiries = ConcurrentHashMap<Int, AtomicLong>()
+
+    /**
+     * Callbacks per transaction code that ran past their deadline, keystore went on without them.
+     */
+    fun expiries(): Map<Int, Long> = expiries.mapValues { it.value.get() }
+
+    // elapsedRealtime the native hook gives up on the running callback, per binder thread
+    private val deadlineAt = ThreadLocal.withInitial { LongArray(1) }
+
+    /**
+     * Whether keystore has stopped waiting for the running callback and served the call itself,
+     * state the callback would keep for its reply must not be committed then.
+     */
+    protected fun pastDeadline() = SystemClock.elapsedRealtime() > deadlineAt.get()!![0]
+
+    private inline fun timed(code: Int, callback: () -> Result): Result {
+        val start = SystemClock.elapsedRealtime()
+        val deadline = deadlines.of(code)
+        deadlineAt.get()!![0] = if (deadline > 0) start + deadline else Long.MAX_VALUE
+        return callback().also {
+            val took = SystemClock.elapsedRealtime() - start
+            if (deadline > 0 && took > deadline) {
+                val count = expiries.getOrPut(code) { AtomicLong() }.incrementAndGet()
+                Logger.w("code $code took ${took}ms, past its ${deadline}ms deadline ($count times)")
+            }
+        }
+    }
+
+    private fun readCallerInfo(data: Parcel) = callerInfo.get()!!.apply {
+        callingUid = data.readInt().toLong()
+        callingPid = data.readInt().toLong()
     }
 
+    /**
+     * [data] is the parcel received from the native hook positioned at the original data, and
+     * [ctx] is reused by the next transaction, neither may be kept after returning.
+     */
     open fun onPreTransact(target: IBinder, code: Int, flags: Int, ctx: CallerInfo, data: Parcel): Result = Skip
     open fun onPostTransact(target: IBinder, code: Int, flags: Int, ctx: CallerInfo, data: Parcel, reply: Parcel?, resultCode: Int): Result = Skip
 
     override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean {
-        val result = when (code) {
-            1 -> { // PRE_TRANSACT
-                val target = data.readStrongBinder()
-                val theCode = data.readInt()
-                val theFlags = data.readInt()
-                val callingUid = data.readInt()
-                val callingPid = data.readInt()
-                val sz = data.readLong()
-                val theData = Parcel.obtain()
-                try {
-                    theData.appendFrom(data, data.dataPosition(), sz.toInt())
-                    theData.setDataPosition(0)
-
-                    val ctx = CallerInfo().apply {
-                        this.callingUid = callingUid.toLong()
-                        this.callingPid = callingPid.toLong()
-                        this.callingSid = "reserved"
-                    }
-
-                    onPreTransact(target, theCode, theFlags, ctx, theData)
-                } finally {
-                    theData.recycle()
-                }
+        if (code == DUMP_STATS_TRANSACTION) return dumpStatsTo(reply)
+        if (code != 1 && code != 2) return super.onTransact(code, data, reply, flags)
+        val start = System.nanoTime()
+        val path = delegated.get()!!
+        path[0] = false
+        val target = data.readStrongBinder()
+        val theCode = data.readInt()
+        val result = try {
+            if (code == 1) onPre(target, theCode, data, start) else onPost(target, theCode, data, start)
+        } catch (t: Throwable) {
+            TransactionTrace.end(TransactionTrace.DECISION_FAILED)
+            throw t
+        }
+        val encodeStart = System.nanoTime()
+        val decision = when (result) {
+            Skip -> {
+                reply!!.writeInt(1)
+                TransactionTrace.DECISION_SKIP
             }
-            2 -> { // POST_TRANSACT
-                val target = data.readStrongBinder()
-                val theCode = data.readInt()
-                val theFlags = data.readInt()
-                val callingUid = data.readInt()
-                // val callingSid = data.readString()
-                val callingPid = data.readInt()
-                val resultCode = data.readInt()
-                val theData = Parcel.obtain()
-                val theReply = Parcel.obtain()
-                try {
-                    val sz = data.readLong().toInt()
-                    theData.appendFrom(data, data.dataPosition(), sz)
-                    theData.setDataPosition(0)
-                    data.setDataPosition(data.dataPosition() + sz)
-                    val sz2 = data.readLong().toInt()
-                    if (sz2 != 0) {
-                        theReply.appendFrom(data, data.dataPosition(), sz2)
-                        theReply.setDataPosition(0)
-                    }
-
-                    val ctx = CallerInfo().apply {
-                        this.callingUid = callingUid.toLong()
-                        this.callingPid = callingPid.toLong()
-                        this.callingSid = "reserved"
-                    }
-
-                    onPostTransact(target, theCode, theFlags, ctx, theData, if (sz2 == 0) null else theReply, resultCode)
-                } finally {
-                    theData.recycle()
-                    theReply.recycle()
-                }
+            Continue -> {
+                reply!!.writeInt(2)
+                TransactionTrace.DECISION_CONTINUE
             }
-            else -> return super.onTransact(code, data, reply, flags)
-        }
-        when (result) {
-            Skip -> reply!!.writeInt(1)
-            Continue -> reply!!.writeInt(2)
             is OverrideReply -> {
                 reply!!.writeInt(3)
                 reply.writeInt(result.code)
                 reply.writeLong(result.reply.dataSize().toLong())
                 reply.appendFrom(result.reply, 0, result.reply.dataSize())
                 result.reply.recycle()
+                TransactionTrace.DECISION_OVERRIDE_REPLY
             }
             is OverrideData -> {
                 reply!!.writeInt(4)
                 reply.writeLong(result.data.dataSize().toLong())
                 reply.appendFrom(result.data, 0, result.data.dataSize())
                 result.data.recycle()
+                TransactionTrace.DECISION_OVERRIDE_DATA
             }
         }
+        TransactionTrace.stage(TransactionTrace.STAGE_ENCODE, encodeStart)
+        TransactionTrace.end(decision)
+        latencies.getOrPut(theCode * 2 + if (path[0]) PATH_OMK else PATH_LOCAL) { LatencyHistogram() }
+            .record((System.nanoTime() - start) / 1000)
+        return true
+    }
+
+    private fun dumpStatsTo(reply: Parcel?): Boolean {
+        val uid = getCallingUid()
+        if (uid != 0 && uid != 2000) return false
+        val text = StringWriter()
+        PrintWriter(text).use { dumpStats(it) }
+        reply?.writeString(text.toString())
         return true
     }
+
+    // PRE_TRANSACT
+    private fun onPre(target: IBinder, theCode: Int, data: Parcel, start: Long): Result {
+        val theFlags = data.readInt()
+        val ctx = readCallerInfo(data)
+        data.readLong()
+        TransactionTrace.begin(traceTarget, TransactionTrace.PHASE_PRE, theCode, ctx.callingUid.toInt(), ctx.callingPid.toInt())
+        TransactionTrace.stage(TransactionTrace.STAGE_DECODE, start)
+        // the original data is the tail of the parcel, let the interceptor read it in place
+        return timed(theCode) { onPreTransact(target, theCode, theFlags, ctx, data) }
+    }
+
+    // POST_TRANSACT
+    private fun onPost(target: IBinder, theCode: Int, data: Parcel, start: Long): Result {
+        val theFlags = data.readInt()
+        val ctx = readCallerInfo(data)
+        val sz = data.readLong().toInt()
+        val dataStart = data.dataPosition()
+        data.setDataPosition(dataStart + sz)
+        val resultCode = data.readInt()
+        val sz2 = data.readLong().toInt()
+        // data and reply are read interleaved, so only the reply gets its own parcel
+        val theReply = if (sz2 == 0) null else Parcel.obtain().apply {
+            appendFrom(data, data.dataPosition(), sz2)
+            setDataPosition(0)
+        }
+        TransactionTrace.begin(traceTarget, TransactionTrace.PHASE_POST, theCode, ctx.callingUid.toInt(), ctx.callingPid.toInt())
+        TransactionTrace.stage(TransactionTrace.STAGE_DECODE, start)
+        return try {
+            data.setDataPosition(dataStart)
+            timed(theCode) {
+                onPostTransact(target, theCode, theFlags, ctx, data, theReply, resultCode)
+            }
+        } finally {
+            theReply?.recycle()
+        }
+    }
 }
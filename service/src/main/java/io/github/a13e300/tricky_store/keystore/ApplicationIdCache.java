@@ -0,0 +1,63 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import org.bouncycastle.asn1.DEROctetString;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.a13e300.tricky_store.Logger;
+import io.github.a13e300.tricky_store.PackageIndex;
+
+/**
+ * Encoded attestation application ids per uid. packages.list is rewritten by the package manager
+ * whenever a package is installed, updated or removed, so entries are stamped with the
+ * {@link PackageIndex} generation and dropped once a newer one is loaded; this covers both version
+ * code and signing certificate changes without asking system_server on every key generation.
+ */
+public final class ApplicationIdCache {
+    public interface Loader {
+        DEROctetString load(int uid) throws Throwable;
+    }
+
+    private record Entry(int generation, DEROctetString applicationId) {
+    }
+
+    private static final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private ApplicationIdCache() {
+    }
+
+    public static DEROctetString get(int uid, Loader loader) throws Throwable {
+        int generation = PackageIndex.INSTANCE.getGeneration();
+        var entry = entries.get(uid);
+        if (entry != null && entry.generation == generation) {
+            hits.incrementAndGet();
+            return entry.applicationId;
+        }
+        var m = misses.incrementAndGet();
+        var applicationId = loader.load(uid);
+        entries.put(uid, new Entry(generation, applicationId));
+        Logger.d(() -> "application id cache miss for uid=" + uid + " (hits=" + hits.get() + " misses=" + m + ")");
+        return applicationId;
+    }
+
+    public static void clear() {
+        entries.clear();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static double getHitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
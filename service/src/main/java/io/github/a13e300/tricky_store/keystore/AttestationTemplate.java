@@ -0,0 +1,145 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import org.bouncycastle.asn1.ASN1Boolean;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Enumerated;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.x509.Extension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import io.github.a13e300.tricky_store.UtilKt;
+
+/**
+ * The attestation extension with every part that does not depend on the request pre-encoded.
+ * It is compiled on first use after the device config changes, and each key generation only
+ * encodes its own parameters and splices them in front of the invariant TEE enforced fragment.
+ */
+public final class AttestationTemplate {
+    private static final ASN1ObjectIdentifier OID = new ASN1ObjectIdentifier("1.3.6.1.4.1.11129.2.1.17");
+
+    private static volatile AttestationTemplate current;
+
+    // attestationVersion, attestationSecurityLevel, keymasterVersion, keymasterSecurityLevel
+    private final byte[] header;
+    private final byte[] uniqueId;
+    // tagged TEE enforced entries after EC_CURVE (tag 10), already sorted by tag
+    private final byte[] teeTail;
+    private final byte[] teeTailWithIds;
+
+    private AttestationTemplate() throws IOException {
+        var out = new ByteArrayOutputStream();
+        out.write(new ASN1Integer(400).getEncoded());
+        out.write(new ASN1Enumerated(1).getEncoded());
+        out.write(new ASN1Integer(400).getEncoded());
+        out.write(new ASN1Enumerated(1).getEncoded());
+        header = out.toByteArray();
+        uniqueId = new DEROctetString(new byte[0]).getEncoded();
+
+        ASN1Encodable[] rootOfTrust = {new DEROctetString(UtilKt.getBootKey()), ASN1Boolean.TRUE,
+                new ASN1Enumerated(0), new DEROctetString(UtilKt.getBootHash())};
+        var patchLevelLong = new ASN1Integer(UtilKt.getPatchLevelLong());
+        List<ASN1TaggedObject> tail = new ArrayList<>(List.of(
+                new DERTaggedObject(true, 503, DERNull.INSTANCE),
+                new DERTaggedObject(true, 702, new ASN1Integer(0)),
+                new DERTaggedObject(true, 704, new DERSequence(rootOfTrust)),
+                new DERTaggedObject(true, 705, new ASN1Integer(UtilKt.getOsVersion())),
+                new DERTaggedObject(true, 706, new ASN1Integer(UtilKt.getPatchLevel())),
+                new DERTaggedObject(true, 718, patchLevelLong),
+                new DERTaggedObject(true, 719, patchLevelLong),
+                new DERTaggedObject(true, 724, new DEROctetString(UtilKt.getModuleHash()))
+        ));
+        teeTail = concat(tail);
+        tail.addAll(UtilKt.getTelephonyInfos());
+        teeTailWithIds = concat(tail);
+    }
+
+    private static byte[] concat(List<ASN1TaggedObject> objects) throws IOException {
+        objects.sort(Comparator.comparingInt(ASN1TaggedObject::getTagNo));
+        var out = new ByteArrayOutputStream();
+        for (var o : objects) out.write(o.getEncoded());
+        return out.toByteArray();
+    }
+
+    public static AttestationTemplate get() throws IOException {
+        var template = current;
+        if (template == null) {
+            synchronized (AttestationTemplate.class) {
+                template = current;
+                if (template == null) {
+                    template = new AttestationTemplate();
+                    current = template;
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Drop the compiled template, the next key generation recompiles it from the current config.
+     * Takes the lock the template is built under, so one compiled from the old config while the
+     * config changed is published first and dropped here rather than published afterwards.
+     */
+    public static synchronized void invalidate() {
+        current = null;
+    }
+
+    public Extension createExtension(CertHack.KeyGenParameters params, DEROctetString applicationId) throws IOException {
+        var tee = new ByteArrayOutputStream();
+        tee.write(new DERTaggedObject(true, 1, new DERSet(fromIntList(params.purpose))).getEncoded());
+        tee.write(new DERTaggedObject(true, 2, new ASN1Integer(params.algorithm)).getEncoded());
+        tee.write(new DERTaggedObject(true, 3, new ASN1Integer(params.keySize)).getEncoded());
+        tee.write(new DERTaggedObject(true, 5, new DERSet(fromIntList(params.digest))).getEncoded());
+        tee.write(new DERTaggedObject(true, 10, new ASN1Integer(params.ecCurve)).getEncoded());
+        // support device properties attestation
+        tee.write(params.brand != null ? teeTailWithIds : teeTail);
+
+        var software = new ByteArrayOutputStream();
+        software.write(new DERTaggedObject(true, 709, applicationId).getEncoded());
+        software.write(new DERTaggedObject(true, 701, new ASN1Integer(System.currentTimeMillis())).getEncoded());
+
+        var challenge = params.attestationChallenge != null ? params.attestationChallenge : new byte[0];
+        var description = new ByteArrayOutputStream();
+        description.write(header);
+        description.write(new DEROctetString(challenge).getEncoded());
+        description.write(uniqueId);
+        writeSequence(description, software);
+        writeSequence(description, tee);
+
+        var out = new ByteArrayOutputStream(description.size() + 8);
+        writeSequence(out, description);
+        return new Extension(OID, false, new DEROctetString(out.toByteArray()));
+    }
+
+    private static ASN1Encodable[] fromIntList(List<Integer> list) {
+        ASN1Encodable[] result = new ASN1Encodable[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            result[i] = new ASN1Integer(list.get(i));
+        }
+        return result;
+    }
+
+    private static void writeSequence(ByteArrayOutputStream out, ByteArrayOutputStream content) throws IOException {
+        out.write(0x30);
+        int length = content.size();
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) out.write(length >>> (i * 8));
+        }
+        content.writeTo(out);
+    }
+}
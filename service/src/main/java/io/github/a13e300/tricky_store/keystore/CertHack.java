@@ -11,442 +11,199 @@ import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
-import org.bouncycastle.asn1.ASN1Boolean;
 import org.bouncycastle.asn1.ASN1Encodable;
-import org.bouncycastle.asn1.ASN1EncodableVector;
-import org.bouncycastle.asn1.ASN1Enumerated;
 import org.bouncycastle.asn1.ASN1Integer;
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-import org.bouncycastle.asn1.ASN1OctetString;
-import org.bouncycastle.asn1.ASN1Sequence;
-import org.bouncycastle.asn1.ASN1TaggedObject;
-import org.bouncycastle.asn1.DERNull;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.DERSequence;
 import org.bouncycastle.asn1.DERSet;
-import org.bouncycastle.asn1.DERTaggedObject;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.bouncycastle.openssl.PEMKeyPair;
-import org.bouncycastle.openssl.PEMParser;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.operator.ContentSigner;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.util.io.pem.PemReader;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.StringReader;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.PrivateKey;
-import java.security.Security;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateFactory;
-import java.security.cert.CertificateParsingException;
-import java.security.cert.X509Certificate;
-import java.security.spec.ECGenParameterSpec;
-import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.security.auth.x500.X500Principal;
 
 import io.github.a13e300.tricky_store.Cache;
 import io.github.a13e300.tricky_store.Config;
 import io.github.a13e300.tricky_store.Logger;
+import io.github.a13e300.tricky_store.PackageIndex;
 import io.github.a13e300.tricky_store.UtilKt;
 import top.qwq2333.ohmykeymint.IOhMyKsService;
 
 public final class CertHack {
-    private static final ASN1ObjectIdentifier OID = new ASN1ObjectIdentifier("1.3.6.1.4.1.11129.2.1.17");
-
     private static final int ATTESTATION_APPLICATION_ID_PACKAGE_INFOS_INDEX = 0;
     private static final int ATTESTATION_APPLICATION_ID_SIGNATURE_DIGESTS_INDEX = 1;
-    private static final Map<String, KeyBox> keyboxes = new HashMap<>();
-    private static final Map<Key, String> leafAlgorithm = new HashMap<>();
+    // obtains key pairs aside while the binder thread builds the attestation extension. Once both
+    // threads are busy and a few calls wait, the binder thread obtains its key pair itself instead
+    // of queueing behind them
+    private static final ExecutorService stages = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(4), r -> {
+        var t = new Thread(r, "KeyGenStage");
+        t.setDaemon(true);
+        return t;
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+    // prepares ahead of the Keystore1 calls that need them, work that does not fit is dropped and
+    // done by those calls instead, as is work they find still queued
+    private static final ThreadPoolExecutor speculative = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(8), r -> {
+        var t = new Thread(r, "KeyGenSpeculative");
+        t.setDaemon(true);
+        return t;
+    }, new ThreadPoolExecutor.AbortPolicy());
     private static final int ATTESTATION_PACKAGE_INFO_PACKAGE_NAME_INDEX = 0;
 
-    private static final CertificateFactory certificateFactory;
-
-    public record Key(String alias, int uid) {
-    }
-
-    static {
-        try {
-            certificateFactory = CertificateFactory.getInstance("X.509");
-        } catch (Throwable t) {
-            Logger.e("", t);
-            throw new RuntimeException(t);
-        }
-    }
-
     private static final int ATTESTATION_PACKAGE_INFO_VERSION_INDEX = 1;
 
     public static boolean canHack() {
-        return !keyboxes.isEmpty();
-    }
-
-    private static PEMKeyPair parseKeyPair(String key) throws Throwable {
-        try (PEMParser parser = new PEMParser(new StringReader(UtilKt.trimLine(key)))) {
-            return (PEMKeyPair) parser.readObject();
-        }
-    }
-
-    private static Certificate parseCert(String cert) throws Throwable {
-        try (PemReader reader = new PemReader(new StringReader(UtilKt.trimLine(cert)))) {
-            return certificateFactory.generateCertificate(new ByteArrayInputStream(reader.readPemObject().getContent()));
-        }
-    }
-
-    private static byte[] getByteArrayFromAsn1(ASN1Encodable asn1Encodable) throws CertificateParsingException {
-        if (!(asn1Encodable instanceof DEROctetString derOctectString)) {
-            throw new CertificateParsingException("Expected DEROctetString");
-        }
-        return derOctectString.getOctets();
+        return !KeyboxRegistry.isEmpty();
     }
 
     public static void readFromXml(String data, IOhMyKsService omk) {
-        keyboxes.clear();
         if (data == null) {
+            KeyboxRegistry.clear();
             Logger.i("clear all keyboxes");
             return;
         }
-        XMLParser xmlParser = new XMLParser(data);
 
         try {
-            int numberOfKeyboxes = Integer.parseInt(Objects.requireNonNull(xmlParser.obtainPath(
-                    "AndroidAttestation.NumberOfKeyboxes").get("text")));
-            for (int i = 0; i < numberOfKeyboxes; i++) {
-                String keyboxAlgorithm = xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "]").get("algorithm");
-                String privateKey = xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "].PrivateKey").get("text");
-                int numberOfCertificates = Integer.parseInt(Objects.requireNonNull(xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.NumberOfCertificates").get("text")));
-
-                LinkedList<Certificate> certificateChain = new LinkedList<>();
-
-                for (int j = 0; j < numberOfCertificates; j++) {
-                    Map<String, String> certData = xmlParser.obtainPath(
-                            "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]");
-                    certificateChain.add(parseCert(certData.get("text")));
-                }
-                String algo;
-                if (keyboxAlgorithm.equalsIgnoreCase("ecdsa")) {
-                    algo = KeyProperties.KEY_ALGORITHM_EC;
-                } else {
-                    algo = KeyProperties.KEY_ALGORITHM_RSA;
-                }
-                var pemKp = parseKeyPair(privateKey);
-                var kp = new JcaPEMKeyConverter().getKeyPair(pemKp);
-                keyboxes.put(algo, new KeyBox(pemKp, kp, certificateChain));
-
+            var document = KeyboxDocument.parse(data);
+            for (var keybox : document.keyboxes()) {
                 if (omk != null) {
                     try {
-                        if (keyboxAlgorithm.equalsIgnoreCase("ecdsa")) {
-                            ArrayList<android.hardware.security.keymint.Certificate> list = new ArrayList<>();
-
-                            for (int j = 0; j < numberOfCertificates; j++) {
-                                Map<String, String> certData = xmlParser.obtainPath(
-                                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]");
-                                var cert = new android.hardware.security.keymint.Certificate();
-                                cert.encodedCertificate = Base64.getDecoder().decode(UtilKt.parsePemToBase64(certData.get("text")));
-                                list.add(cert);
-                            }
-
-                            omk.updateEcKeybox(Base64.getDecoder().decode(UtilKt.parsePemToBase64(privateKey)), list);
-                        } else if (keyboxAlgorithm.equalsIgnoreCase("rsa")) {
-                            ArrayList<android.hardware.security.keymint.Certificate> list = new ArrayList<>();
-                            for (int j = 0; j < numberOfCertificates; j++) {
-                                Map<String, String> certData = xmlParser.obtainPath(
-                                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]");
-                                var cert = new android.hardware.security.keymint.Certificate();
-                                cert.encodedCertificate = Base64.getDecoder().decode(UtilKt.parsePemToBase64(certData.get("text")));
-                                list.add(cert);
-                            }
-
-                            omk.updateRsaKeybox(Base64.getDecoder().decode(UtilKt.parsePemToBase64(privateKey)), list);
+                        ArrayList<android.hardware.security.keymint.Certificate> list = new ArrayList<>();
+                        for (var encoded : keybox.encodedCertificates()) {
+                            var cert = new android.hardware.security.keymint.Certificate();
+                            cert.encodedCertificate = encoded;
+                            list.add(cert);
+                        }
+
+                        if (KeyProperties.KEY_ALGORITHM_EC.equals(keybox.algorithm())) {
+                            omk.updateEcKeybox(keybox.privateKey(), list);
+                        } else if (KeyProperties.KEY_ALGORITHM_RSA.equals(keybox.algorithm())) {
+                            omk.updateRsaKeybox(keybox.privateKey(), list);
                         }
                     } catch (Exception e) {
                         Logger.e("Unable to update keybox to OMK", e);
                     }
                 }
             }
-            Logger.i("update " + numberOfKeyboxes + " keyboxes");
+            KeyboxRegistry.load(document.keyboxes());
+            Logger.i("update " + document.keyboxes().size() + " keyboxes");
         } catch (Throwable t) {
+            KeyboxRegistry.clear();
             Logger.e("Error loading xml file (keyboxes cleared): " + t);
         }
     }
 
-    public static Certificate[] hackCertificateChain(Certificate[] caList) {
-        if (caList == null) throw new UnsupportedOperationException("caList is null!");
+    public static KeyPair generateKeyPair(KeyGenParameters params) {
+        KeyPair kp;
         try {
-            X509Certificate leaf = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(caList[0].getEncoded()));
-            byte[] bytes = leaf.getExtensionValue(OID.getId());
-            if (bytes == null) return caList;
-
-            X509CertificateHolder leafHolder = new X509CertificateHolder(leaf.getEncoded());
-            Extension ext = leafHolder.getExtension(OID);
-            ASN1Sequence sequence = ASN1Sequence.getInstance(ext.getExtnValue().getOctets());
-            ASN1Encodable[] encodables = sequence.toArray();
-            ASN1Sequence teeEnforced = (ASN1Sequence) encodables[7];
-            ASN1EncodableVector vector = new ASN1EncodableVector();
-            ASN1Encodable rootOfTrust = null;
-
-            for (ASN1Encodable asn1Encodable : teeEnforced) {
-                ASN1TaggedObject taggedObject = (ASN1TaggedObject) asn1Encodable;
-                if (taggedObject.getTagNo() == 704) {
-                    rootOfTrust = taggedObject.getBaseObject().toASN1Primitive();
-                    continue;
-                }
-                vector.add(taggedObject);
-            }
-
-            LinkedList<Certificate> certificates;
-            X509v3CertificateBuilder builder;
-            ContentSigner signer;
-
-            var k = keyboxes.get(leaf.getPublicKey().getAlgorithm());
-            if (k == null)
-                throw new UnsupportedOperationException("unsupported algorithm " + leaf.getPublicKey().getAlgorithm());
-            certificates = new LinkedList<>(k.certificates);
-            builder = new X509v3CertificateBuilder(
-                    new X509CertificateHolder(
-                            certificates.get(0).getEncoded()
-                    ).getSubject(),
-                    leafHolder.getSerialNumber(),
-                    leafHolder.getNotBefore(),
-                    leafHolder.getNotAfter(),
-                    leafHolder.getSubject(),
-                    leafHolder.getSubjectPublicKeyInfo()
-            );
-            signer = new JcaContentSignerBuilder(leaf.getSigAlgName())
-                    .build(k.keyPair.getPrivate());
-
-            byte[] verifiedBootKey = UtilKt.getBootKey();
-            byte[] verifiedBootHash = null;
-            try {
-                if (!(rootOfTrust instanceof ASN1Sequence r)) {
-                    throw new CertificateParsingException("Expected sequence for root of trust, found "
-                            + rootOfTrust.getClass().getName());
-                }
-                verifiedBootHash = getByteArrayFromAsn1(r.getObjectAt(3));
-            } catch (Throwable t) {
-                Logger.e("failed to get verified boot key or hash from original, use randomly generated instead", t);
-            }
-
-            if (verifiedBootHash == null) {
-                verifiedBootHash = UtilKt.getBootHash();
-            }
-
-            ASN1Encodable[] rootOfTrustEnc = {
-                    new DEROctetString(verifiedBootKey),
-                    ASN1Boolean.TRUE,
-                    new ASN1Enumerated(0),
-                    new DEROctetString(verifiedBootHash)
-            };
-
-            ASN1Sequence hackedRootOfTrust = new DERSequence(rootOfTrustEnc);
-            ASN1TaggedObject rootOfTrustTagObj = new DERTaggedObject(704, hackedRootOfTrust);
-            vector.add(rootOfTrustTagObj);
-
-            ASN1Sequence hackEnforced = new DERSequence(vector);
-            encodables[7] = hackEnforced;
-            ASN1Sequence hackedSeq = new DERSequence(encodables);
-
-            ASN1OctetString hackedSeqOctets = new DEROctetString(hackedSeq);
-            Extension hackedExt = new Extension(OID, false, hackedSeqOctets);
-            builder.addExtension(hackedExt);
-
-            for (ASN1ObjectIdentifier extensionOID : leafHolder.getExtensions().getExtensionOIDs()) {
-                if (OID.getId().equals(extensionOID.getId())) continue;
-                builder.addExtension(leafHolder.getExtension(extensionOID));
+            var algo = params.algorithm;
+            if (algo == Algorithm.EC) {
+                Logger.d(() -> "GENERATING EC KEYPAIR OF SIZE " + params.keySize);
+                kp = KeyPairPool.obtain(params);
+            } else if (algo == Algorithm.RSA) {
+                Logger.d(() -> "GENERATING RSA KEYPAIR OF SIZE " + params.keySize);
+                kp = KeyPairPool.obtain(params);
+            } else {
+                Logger.e("UNSUPPORTED ALGORITHM: " + algo);
+                return null;
             }
-            certificates.addFirst(new JcaX509CertificateConverter().getCertificate(builder.build(signer)));
-
-            return certificates.toArray(new Certificate[0]);
-
+            return kp;
         } catch (Throwable t) {
             Logger.e("", t);
         }
-        return caList;
+        return null;
     }
 
-    public static byte[] hackCertificateChainCA(byte[] caList, String alias, int uid) {
-        if (caList == null) throw new UnsupportedOperationException("caList is null!");
+    /**
+     * Keystore1 asks for a key pair with generateKey but only fetches it with exportKey and has it
+     * attested with attestKey, so the key pair and the application id it is attested with are
+     * prepared in between. Hand the result to {@link #joinKeyPair}.
+     */
+    public static Future<KeyPair> generateKeyPairAsync(KeyGenParameters params, int uid) {
+        var keyPair = new FutureTask<>(() -> generateKeyPair(params));
         try {
-            var key = new Key(alias, uid);
-            var algorithm = leafAlgorithm.get(key);
-            leafAlgorithm.remove(key);
-            var k = keyboxes.get(algorithm);
-            if (k == null)
-                throw new UnsupportedOperationException("unsupported algorithm " + algorithm);
-            return Utils.toBytes(k.certificates);
-        } catch (Throwable t) {
-            Logger.e("", t);
+            speculative.execute(keyPair);
+        } catch (RejectedExecutionException e) {
+            Logger.d(() -> "speculative queue full, key pair of uid " + uid + " is generated on demand");
         }
-        return caList;
-    }
-
-    public static byte[] hackCertificateChainUSR(byte[] certificate, String alias, int uid) {
-        if (certificate == null) throw new UnsupportedOperationException("leaf is null!");
         try {
-            X509Certificate leaf = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(certificate));
-            byte[] bytes = leaf.getExtensionValue(OID.getId());
-            if (bytes == null) return certificate;
-
-            X509CertificateHolder leafHolder = new X509CertificateHolder(leaf.getEncoded());
-            Extension ext = leafHolder.getExtension(OID);
-            ASN1Sequence sequence = ASN1Sequence.getInstance(ext.getExtnValue().getOctets());
-            ASN1Encodable[] encodables = sequence.toArray();
-            ASN1Sequence teeEnforced = (ASN1Sequence) encodables[7];
-            ASN1EncodableVector vector = new ASN1EncodableVector();
-            ASN1Encodable rootOfTrust = null;
-
-            for (ASN1Encodable asn1Encodable : teeEnforced) {
-                ASN1TaggedObject taggedObject = (ASN1TaggedObject) asn1Encodable;
-                if (taggedObject.getTagNo() == 704) {
-                    rootOfTrust = taggedObject.getBaseObject().toASN1Primitive();
-                    continue;
+            speculative.execute(() -> {
+                try {
+                    ApplicationIdCache.get(uid, CertHack::createApplicationId);
+                } catch (Throwable t) {
+                    // attestKey tries again and reports it
+                    Logger.d(() -> "failed to prepare application id of uid " + uid + ": " + t);
                 }
-                vector.add(taggedObject);
-            }
-
-            LinkedList<Certificate> certificates;
-            X509v3CertificateBuilder builder;
-            ContentSigner signer;
-
-            leafAlgorithm.put(new Key(alias, uid), leaf.getPublicKey().getAlgorithm());
-            var k = keyboxes.get(leaf.getPublicKey().getAlgorithm());
-            if (k == null)
-                throw new UnsupportedOperationException("unsupported algorithm " + leaf.getPublicKey().getAlgorithm());
-            certificates = new LinkedList<>(k.certificates);
-            builder = new X509v3CertificateBuilder(
-                    new X509CertificateHolder(
-                            certificates.get(0).getEncoded()
-                    ).getSubject(),
-                    leafHolder.getSerialNumber(),
-                    leafHolder.getNotBefore(),
-                    leafHolder.getNotAfter(),
-                    leafHolder.getSubject(),
-                    leafHolder.getSubjectPublicKeyInfo()
-            );
-            signer = new JcaContentSignerBuilder(leaf.getSigAlgName())
-                    .build(k.keyPair.getPrivate());
-
-            byte[] verifiedBootKey = UtilKt.getBootKey();
-            byte[] verifiedBootHash = null;
-            try {
-                if (!(rootOfTrust instanceof ASN1Sequence r)) {
-                    throw new CertificateParsingException("Expected sequence for root of trust, found "
-                            + rootOfTrust.getClass().getName());
-                }
-                verifiedBootHash = getByteArrayFromAsn1(r.getObjectAt(3));
-            } catch (Throwable t) {
-                Logger.e("failed to get verified boot key or hash from original, use randomly generated instead", t);
-            }
-
-            if (verifiedBootHash == null) {
-                verifiedBootHash = UtilKt.getBootHash();
-            }
-
-            ASN1Encodable[] rootOfTrustEnc = {
-                    new DEROctetString(verifiedBootKey),
-                    ASN1Boolean.TRUE,
-                    new ASN1Enumerated(0),
-                    new DEROctetString(verifiedBootHash)
-            };
-
-            ASN1Sequence hackedRootOfTrust = new DERSequence(rootOfTrustEnc);
-            ASN1TaggedObject rootOfTrustTagObj = new DERTaggedObject(704, hackedRootOfTrust);
-            vector.add(rootOfTrustTagObj);
-
-            ASN1Sequence hackEnforced = new DERSequence(vector);
-            encodables[7] = hackEnforced;
-            ASN1Sequence hackedSeq = new DERSequence(encodables);
-
-            ASN1OctetString hackedSeqOctets = new DEROctetString(hackedSeq);
-            Extension hackedExt = new Extension(OID, false, hackedSeqOctets);
-            builder.addExtension(hackedExt);
-
-            for (ASN1ObjectIdentifier extensionOID : leafHolder.getExtensions().getExtensionOIDs()) {
-                if (OID.getId().equals(extensionOID.getId())) continue;
-                builder.addExtension(leafHolder.getExtension(extensionOID));
-            }
-            return new JcaX509CertificateConverter().getCertificate(builder.build(signer)).getEncoded();
-
-        } catch (Throwable t) {
-            Logger.e("", t);
+            });
+        } catch (RejectedExecutionException ignored) {
+            // attestKey creates it
         }
-        return certificate;
+        return keyPair;
     }
 
-    public static KeyPair generateKeyPair(KeyGenParameters params) {
-        KeyPair kp;
+    /**
+     * The key pair of {@link #generateKeyPairAsync}, null when it could not be generated. One that
+     * has not started yet, still queued or dropped, is generated on the calling thread.
+     */
+    public static KeyPair joinKeyPair(Future<KeyPair> keyPair) {
+        if (keyPair instanceof FutureTask<KeyPair> task) {
+            speculative.remove(task);
+            // does nothing when a worker already runs or ran it
+            task.run();
+        }
         try {
-            var algo = params.algorithm;
-            if (algo == Algorithm.EC) {
-                Logger.d("GENERATING EC KEYPAIR OF SIZE " + params.keySize);
-                kp = buildECKeyPair(params);
-            } else if (algo == Algorithm.RSA) {
-                Logger.d("GENERATING RSA KEYPAIR OF SIZE " + params.keySize);
-                kp = buildRSAKeyPair(params);
-            } else {
-                Logger.e("UNSUPPORTED ALGORITHM: " + algo);
-                return null;
-            }
-            return kp;
-        } catch (Throwable t) {
-            Logger.e("", t);
+            return keyPair.get();
+        } catch (ExecutionException | InterruptedException e) {
+            Logger.e("failed to join key pair", e);
+            return null;
         }
-        return null;
     }
 
     public static List<byte[]> generateChain(int uid, KeyGenParameters params, KeyPair kp) {
-        KeyPair rootKP;
         X500Name issuer;
-        KeyBox keyBox = null;
+        KeyboxRegistry.Entry keyBox;
         try {
             var algo = params.algorithm;
-            if (algo == Algorithm.EC) {
-                keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_EC);
-            } else if (algo == Algorithm.RSA) {
-                keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_RSA);
-            }
+            keyBox = KeyboxRegistry.select(keyboxAlgorithmOf(algo), uid);
             if (keyBox == null) {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
-            rootKP = keyBox.keyPair;
-            issuer = new X509CertificateHolder(
-                    keyBox.certificates.get(0).getEncoded()
-            ).getSubject();
+            issuer = keyBox.issuer;
 
             X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(issuer,
                     new BigInteger("1"),//params.certificateSerial,
                     params.certificateNotBefore,
-                    ((X509Certificate) keyBox.certificates.get(0)).getNotAfter(),//params.certificateNotAfter,
+                    keyBox.notAfter,//params.certificateNotAfter,
                     new X500Name("CN=Android KeyStore Key"),//params.certificateSubject,
                     kp.getPublic()
             );
@@ -455,18 +212,12 @@ public final class CertHack {
             certBuilder.addExtension(Extension.keyUsage, true, keyUsage);
             certBuilder.addExtension(createExtension(params, uid));
 
-            ContentSigner contentSigner;
-            if (algo == Algorithm.EC) {
-                contentSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(rootKP.getPrivate());
-            } else {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKP.getPrivate());
-            }
-            X509CertificateHolder certHolder = certBuilder.build(contentSigner);
-            var leaf = new JcaX509CertificateConverter().getCertificate(certHolder);
-            List<Certificate> chain = new ArrayList<>(keyBox.certificates);
-            chain.add(0, leaf);
-            //Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
-            return Utils.toListBytes(chain);
+            X509CertificateHolder certHolder = certBuilder.build(keyBox.signer());
+            List<byte[]> chain = new ArrayList<>(keyBox.encodedCertificates.size() + 1);
+            chain.add(certHolder.getEncoded());
+            chain.addAll(keyBox.encodedCertificates);
+            //Logger.d(() -> "Successfully generated X500 Cert for alias: " + descriptor.alias);
+            return chain;
         } catch (Throwable t) {
             Logger.e("", t);
         }
@@ -482,26 +233,30 @@ public final class CertHack {
         X500Name issuer;
         int size = params.keySize;
         KeyPair kp = null;
-        KeyBox keyBox = null;
+        KeyboxRegistry.Entry keyBox;
         try {
             var algo = params.algorithm;
             if (algo == Algorithm.EC) {
-                Logger.d("GENERATING EC KEYPAIR OF SIZE " + size);
-                kp = buildECKeyPair(params);
-                keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_EC);
+                Logger.d(() -> "GENERATING EC KEYPAIR OF SIZE " + size);
             } else if (algo == Algorithm.RSA) {
-                Logger.d("GENERATING RSA KEYPAIR OF SIZE " + size);
-                kp = buildRSAKeyPair(params);
-                keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_RSA);
+                Logger.d(() -> "GENERATING RSA KEYPAIR OF SIZE " + size);
             }
+            keyBox = KeyboxRegistry.select(keyboxAlgorithmOf(algo), uid);
             if (keyBox == null) {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
+            // a pool miss generates the key pair and an application id miss asks the package
+            // manager, neither needs the other so they overlap and only join before signing
+            var keyPairStage = obtainKeyPairAsync(params);
+            Extension attestation = null;
+            if (params.attestationChallenge != null) {
+                attestation = createExtension(params, uid);
+            } else {
+                Logger.d("No attestationChallenge provided, skipping attestation extension");
+            }
             rootKP = keyBox.keyPair;
-            issuer = new X509CertificateHolder(
-                    keyBox.certificates.get(0).getEncoded()
-            ).getSubject();
+            issuer = keyBox.issuer;
 
             if (attestPurpose) {
                 var info = Cache.INSTANCE.getKeyPairs(uid, attestKeyDescriptor.alias);
@@ -513,7 +268,8 @@ public final class CertHack {
                 }
             }
 
-            Logger.d("certificateSubject: " + params.certificateSubject);
+            kp = keyPairStage.join();
+            Logger.d(() -> "certificateSubject: " + params.certificateSubject);
             X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(issuer,
                     params.certificateSerial,
                     params.certificateNotBefore,
@@ -522,7 +278,7 @@ public final class CertHack {
                     kp.getPublic()
             );
 
-            params.purpose.forEach((it) -> Logger.d("CertHack: Purpose: " + it));
+            Logger.d(() -> "CertHack: Purpose: " + params.purpose);
             KeyUsage keyUsage;
             if (params.purpose.stream().anyMatch((it) -> it == 0 || it == 1)) {
                 keyUsage = new KeyUsage(KeyUsage.keyEncipherment | KeyUsage.dataEncipherment);
@@ -531,19 +287,17 @@ public final class CertHack {
             }
             certBuilder.addExtension(Extension.keyUsage, true, keyUsage);
             if (params.attestationChallenge != null) {
-                certBuilder.addExtension(createExtension(params, uid));
-            } else {
-                Logger.d("No attestationChallenge provided, skipping attestation extension");
+                certBuilder.addExtension(attestation);
             }
 
             ContentSigner contentSigner;
             if (algo == Algorithm.EC) {
-                contentSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(rootKP.getPrivate());
+                contentSigner = CryptoEngine.contentSigner("SHA256withECDSA", rootKP.getPrivate());
             } else {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKP.getPrivate());
+                contentSigner = CryptoEngine.contentSigner("SHA256withRSA", rootKP.getPrivate());
             }
             X509CertificateHolder certHolder = certBuilder.build(contentSigner);
-            var leaf = new JcaX509CertificateConverter().getCertificate(certHolder);
+            var leaf = CryptoEngine.toX509(certHolder);
             List<Certificate> chain;
             if (!attestPurpose) {
                 chain = new ArrayList<>(keyBox.certificates);
@@ -551,14 +305,32 @@ public final class CertHack {
                 chain = new ArrayList<>();
             }
             chain.add(0, leaf);
-            Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
+            Logger.d(() -> "Successfully generated X500 Cert for alias: " + descriptor.alias);
             return new Pair<>(kp, chain);
         } catch (Throwable t) {
-            Logger.e("", t);
+            Logger.e("", t instanceof CompletionException ? t.getCause() : t);
         }
         return null;
     }
 
+    private static String keyboxAlgorithmOf(int algorithm) {
+        return switch (algorithm) {
+            case Algorithm.EC -> KeyProperties.KEY_ALGORITHM_EC;
+            case Algorithm.RSA -> KeyProperties.KEY_ALGORITHM_RSA;
+            default -> null;
+        };
+    }
+
+    private static CompletableFuture<KeyPair> obtainKeyPairAsync(KeyGenParameters params) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return KeyPairPool.obtain(params);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, stages);
+    }
+
     public interface ImportedKeyCallback {
         kotlin.Pair<PrivateKey, Certificate> getCachedKeypair();
     }
@@ -580,20 +352,20 @@ public final class CertHack {
             ).getSubject();
 
             if (algo == Algorithm.EC) {
-                if (size < 1) size = 256;
-                Logger.d("GENERATING EC KEYPAIR OF SIZE " + size);
-                kp = buildECKeyPair(params);
+                var ecSize = size < 1 ? 256 : size;
+                Logger.d(() -> "GENERATING EC KEYPAIR OF SIZE " + ecSize);
+                kp = KeyPairPool.obtain(params);
             } else if (algo == Algorithm.RSA) {
-                if (size < 1) size = 2048;
-                Logger.d("GENERATING RSA KEYPAIR OF SIZE " + size);
-                kp = buildRSAKeyPair(params);
+                var rsaSize = size < 1 ? 2048 : size;
+                Logger.d(() -> "GENERATING RSA KEYPAIR OF SIZE " + rsaSize);
+                kp = KeyPairPool.obtain(params);
             } else {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
                 return null;
             }
 
 
-            Logger.d("certificateSubject: " + params.certificateSubject);
+            Logger.d(() -> "certificateSubject: " + params.certificateSubject);
             if (params.certificateSubject == null)
                 params.certificateSubject = X500Name.getInstance(new DERSequence());
             if (params.certificateNotAfter == null)
@@ -616,16 +388,16 @@ public final class CertHack {
 
             ContentSigner contentSigner;
             if (algo == Algorithm.EC) {
-                contentSigner = new JcaContentSignerBuilder("SHA256withECDSA").build(rootKP.getPrivate());
+                contentSigner = CryptoEngine.contentSigner("SHA256withECDSA", rootKP.getPrivate());
             } else {
-                contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKP.getPrivate());
+                contentSigner = CryptoEngine.contentSigner("SHA256withRSA", rootKP.getPrivate());
             }
             X509CertificateHolder certHolder = certBuilder.build(contentSigner);
-            var leaf = new JcaX509CertificateConverter().getCertificate(certHolder);
+            var leaf = CryptoEngine.toX509(certHolder);
             List<Certificate> chain;
             chain = new ArrayList<>();
             chain.add(0, leaf);
-            Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
+            Logger.d(() -> "Successfully generated X500 Cert for alias: " + descriptor.alias);
             return new Pair<>(kp, chain);
         } catch (Throwable t) {
             Logger.e("", t);
@@ -634,127 +406,25 @@ public final class CertHack {
         return null;
     }
 
-    private static KeyPair buildECKeyPair(KeyGenParameters params) throws Exception {
-        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
-        Security.addProvider(new BouncyCastleProvider());
-        ECGenParameterSpec spec = new ECGenParameterSpec(params.ecCurveName);
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
-        kpg.initialize(spec);
-        return kpg.generateKeyPair();
-    }
-
-    private static KeyPair buildRSAKeyPair(KeyGenParameters params) throws Exception {
-        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
-        Security.addProvider(new BouncyCastleProvider());
-        RSAKeyGenParameterSpec spec = new RSAKeyGenParameterSpec(
-                params.keySize, params.rsaPublicExponent);
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", BouncyCastleProvider.PROVIDER_NAME);
-        kpg.initialize(spec);
-        return kpg.generateKeyPair();
-    }
-
-    private static ASN1Encodable[] fromIntList(List<Integer> list) {
-        ASN1Encodable[] result = new ASN1Encodable[list.size()];
-        for (int i = 0; i < list.size(); i++) {
-            result[i] = new ASN1Integer(list.get(i));
-        }
-        return result;
-    }
-
     private static Extension createExtension(KeyGenParameters params, int uid) {
         try {
-            byte[] key = UtilKt.getBootKey();
-            byte[] hash = UtilKt.getBootHash();
-
-            ASN1Encodable[] rootOfTrustEncodables = {new DEROctetString(key), ASN1Boolean.TRUE,
-                    new ASN1Enumerated(0), new DEROctetString(hash)};
-
-            ASN1Sequence rootOfTrustSeq = new DERSequence(rootOfTrustEncodables);
-
-            Logger.dd("params.purpose: " + params.purpose);
-
-            var Apurpose = new DERSet(fromIntList(params.purpose));
-            var Aalgorithm = new ASN1Integer(params.algorithm);
-            var AkeySize = new ASN1Integer(params.keySize);
-            var Adigest = new DERSet(fromIntList(params.digest));
-            var AecCurve = new ASN1Integer(params.ecCurve);
-            var AnoAuthRequired = DERNull.INSTANCE;
-
-            // To be loaded
-            var AosVersion = new ASN1Integer(UtilKt.getOsVersion());
-            var AosPatchLevel = new ASN1Integer(UtilKt.getPatchLevel());
-
-            var AapplicationID = createApplicationId(uid);
-            var AbootPatchlevel = new ASN1Integer(UtilKt.getPatchLevelLong());
-            var AvendorPatchLevel = new ASN1Integer(UtilKt.getPatchLevelLong());
-
-            var AcreationDateTime = new ASN1Integer(System.currentTimeMillis());
-            var Aorigin = new ASN1Integer(0);
-
-            var purpose = new DERTaggedObject(true, 1, Apurpose);
-            var algorithm = new DERTaggedObject(true, 2, Aalgorithm);
-            var keySize = new DERTaggedObject(true, 3, AkeySize);
-            var digest = new DERTaggedObject(true, 5, Adigest);
-            var ecCurve = new DERTaggedObject(true, 10, AecCurve);
-            var noAuthRequired = new DERTaggedObject(true, 503, AnoAuthRequired);
-            var creationDateTime = new DERTaggedObject(true, 701, AcreationDateTime);
-            var origin = new DERTaggedObject(true, 702, Aorigin);
-            var rootOfTrust = new DERTaggedObject(true, 704, rootOfTrustSeq);
-            var osVersion = new DERTaggedObject(true, 705, AosVersion);
-            var osPatchLevel = new DERTaggedObject(true, 706, AosPatchLevel);
-            var applicationID = new DERTaggedObject(true, 709, AapplicationID);
-            var vendorPatchLevel = new DERTaggedObject(true, 718, AvendorPatchLevel);
-            var bootPatchLevel = new DERTaggedObject(true, 719, AbootPatchlevel);
-
-            var AmoduleHash = new DEROctetString(UtilKt.getModuleHash());
-            var moduleHash = new DERTaggedObject(true, 724, AmoduleHash);
-
-            var arrayList = new ArrayList<>(Arrays.asList(purpose, algorithm, keySize, digest, ecCurve,
-                    noAuthRequired, origin, rootOfTrust, osVersion, osPatchLevel, vendorPatchLevel,
-                    bootPatchLevel, moduleHash));
-
-            // Support device properties attestation
-            if (params.brand != null) {
-                arrayList.addAll(UtilKt.getTelephonyInfos());
-            }
-
-            arrayList.sort(Comparator.comparingInt(ASN1TaggedObject::getTagNo));
-
-            ASN1Encodable[] softwareEnforced = {applicationID, creationDateTime};
-
-            ASN1OctetString keyDescriptionOctetStr = getAsn1OctetString(arrayList.toArray(new ASN1Encodable[]{}), softwareEnforced, params);
-
-            return new Extension(new ASN1ObjectIdentifier("1.3.6.1.4.1.11129.2.1.17"), false, keyDescriptionOctetStr);
+            Logger.dd(() -> "params.purpose: " + params.purpose);
+            return AttestationTemplate.get().createExtension(params, ApplicationIdCache.get(uid, CertHack::createApplicationId));
         } catch (Throwable t) {
             Logger.e("", t);
         }
         return null;
     }
 
-    private static ASN1OctetString getAsn1OctetString(ASN1Encodable[] teeEnforcedEncodables, ASN1Encodable[] softwareEnforcedEncodables, KeyGenParameters params) throws IOException {
-        ASN1Integer attestationVersion = new ASN1Integer(400);
-        ASN1Enumerated attestationSecurityLevel = new ASN1Enumerated(1);
-        ASN1Integer keymasterVersion = new ASN1Integer(400);
-        ASN1Enumerated keymasterSecurityLevel = new ASN1Enumerated(1);
-        ASN1OctetString attestationChallenge = new DEROctetString(Objects.requireNonNullElseGet(params.attestationChallenge, () -> new byte[]{}));
-        ASN1OctetString uniqueId = new DEROctetString("".getBytes());
-        ASN1Encodable softwareEnforced = new DERSequence(softwareEnforcedEncodables);
-        ASN1Sequence teeEnforced = new DERSequence(teeEnforcedEncodables);
-
-        ASN1Encodable[] keyDescriptionEncodables = {attestationVersion, attestationSecurityLevel, keymasterVersion,
-                keymasterSecurityLevel, attestationChallenge, uniqueId, softwareEnforced, teeEnforced};
-
-        ASN1Sequence keyDescriptionHackSeq = new DERSequence(keyDescriptionEncodables);
-
-        return new DEROctetString(keyDescriptionHackSeq);
-    }
-
     private static DEROctetString createApplicationId(int uid) throws Throwable {
         var pm = Config.INSTANCE.getPm();
         if (pm == null) {
             throw new IllegalStateException("createApplicationId: pm not found!");
         }
-        var packages = pm.getPackagesForUid(uid);
+        var packages = PackageIndex.INSTANCE.getPackagesForUid(uid);
+        if (packages == null) {
+            throw new IllegalStateException("createApplicationId: no packages for uid " + uid);
+        }
         var size = packages.length;
         ASN1Encodable[] packageInfoAA = new ASN1Encodable[size];
         Set<Digest> signatures = new HashSet<>();
@@ -802,9 +472,6 @@ public final class CertHack {
         }
     }
 
-    record KeyBox(PEMKeyPair pemKeyPair, KeyPair keyPair, List<Certificate> certificates) {
-    }
-
     public static class KeyGenParameters {
         public int keySize;
         public int algorithm;
@@ -834,7 +501,7 @@ public final class CertHack {
 
         public KeyGenParameters(KeyParameter[] params) {
             for (var kp : params) {
-                Logger.d("kp: " + kp.tag);
+                Logger.d(() -> "kp: " + kp.tag);
                 var p = kp.value;
                 switch (kp.tag) {
                     case Tag.KEY_SIZE -> keySize = p.getInteger();
@@ -0,0 +1,134 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single owner of the JCA objects used on hot paths. The BouncyCastle provider is registered once,
+ * and generators, signers and factories are cached per thread since none of them are thread safe.
+ */
+public final class CryptoEngine {
+    public static final Provider PROVIDER;
+
+    static {
+        // the platform ships a stripped down "BC" provider, replace it with the full one once
+        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
+        PROVIDER = new BouncyCastleProvider();
+        Security.addProvider(PROVIDER);
+    }
+
+    private static final ThreadLocal<Map<String, KeyPairGenerator>> keyPairGenerators =
+            ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, JcaContentSignerBuilder>> signerBuilders =
+            ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Signature>> signatures =
+            ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, KeyFactory>> keyFactories =
+            ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<CertificateFactory> certificateFactories =
+            ThreadLocal.withInitial(() -> {
+                try {
+                    return CertificateFactory.getInstance("X.509");
+                } catch (CertificateException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+    private CryptoEngine() {
+    }
+
+    private static KeyPairGenerator keyPairGenerator(String algorithm) throws GeneralSecurityException {
+        var map = keyPairGenerators.get();
+        var kpg = map.get(algorithm);
+        if (kpg == null) {
+            kpg = KeyPairGenerator.getInstance(algorithm, PROVIDER);
+            map.put(algorithm, kpg);
+        }
+        return kpg;
+    }
+
+    public static KeyPair generateECKeyPair(String curveName) throws GeneralSecurityException {
+        var kpg = keyPairGenerator("ECDSA");
+        kpg.initialize(new ECGenParameterSpec(curveName));
+        return kpg.generateKeyPair();
+    }
+
+    public static KeyPair generateRSAKeyPair(int keySize, BigInteger publicExponent) throws GeneralSecurityException {
+        var kpg = keyPairGenerator("RSA");
+        kpg.initialize(new RSAKeyGenParameterSpec(keySize, publicExponent));
+        return kpg.generateKeyPair();
+    }
+
+    /**
+     * A signer for a single certificate; it must not leave the calling thread.
+     */
+    public static ContentSigner contentSigner(String algorithm, PrivateKey privateKey) throws OperatorCreationException {
+        var map = signerBuilders.get();
+        var builder = map.get(algorithm);
+        if (builder == null) {
+            builder = new JcaContentSignerBuilder(algorithm);
+            map.put(algorithm, builder);
+        }
+        return builder.build(privateKey);
+    }
+
+    /**
+     * A thread confined signature, callers must (re)initialize it before use.
+     */
+    public static Signature signature(String algorithm) throws GeneralSecurityException {
+        var map = signatures.get();
+        var signature = map.get(algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            map.put(algorithm, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * A signature owned by the caller, for operations that span several binder calls.
+     */
+    public static Signature newSignature(String algorithm) throws GeneralSecurityException {
+        return Signature.getInstance(algorithm);
+    }
+
+    public static KeyFactory keyFactory(String algorithm) throws GeneralSecurityException {
+        var map = keyFactories.get();
+        var keyFactory = map.get(algorithm);
+        if (keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(algorithm);
+            map.put(algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
+    public static CertificateFactory certificateFactory() {
+        return certificateFactories.get();
+    }
+
+    public static X509Certificate toX509(X509CertificateHolder holder) throws CertificateException, IOException {
+        return (X509Certificate) certificateFactory().generateCertificate(new ByteArrayInputStream(holder.getEncoded()));
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import android.hardware.security.keymint.Algorithm;
+import android.os.Process;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.a13e300.tricky_store.Logger;
+
+/**
+ * Pre-generated key pairs for the specs nearly every app asks for, refilled by a low priority
+ * background worker so that binder threads rarely have to generate RSA keys inline. Any other
+ * spec is generated on demand and never pooled, an app asking for RSA-8192 once must not keep
+ * the worker busy for good.
+ */
+public final class KeyPairPool {
+    private record Spec(int algorithm, int keySize, String curve, BigInteger exponent) {
+    }
+
+    private static final class Pool {
+        final Queue<KeyPair> keyPairs = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+
+    private static final Map<Spec, Pool> pools = Map.of(
+            new Spec(Algorithm.EC, 0, "secp256r1", null), new Pool(),
+            new Spec(Algorithm.RSA, 2048, null, RSAKeyGenParameterSpec.F4), new Pool());
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private static final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "KeyPairPool");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private static volatile int ecPoolSize = 0;
+    private static volatile int rsaPoolSize = 0;
+
+    private KeyPairPool() {
+    }
+
+    public static void configure(int ecSize, int rsaSize) {
+        ecPoolSize = Math.max(ecSize, 0);
+        rsaPoolSize = Math.max(rsaSize, 0);
+        // warm even before the first request
+        scheduleRefill();
+    }
+
+    /**
+     * Take a pooled key pair matching {@code params}, or generate one inline if the pool is empty
+     * or the spec is not pooled.
+     */
+    public static KeyPair obtain(CertHack.KeyGenParameters params) throws Exception {
+        var spec = specOf(params);
+        var pool = spec == null ? null : pools.get(spec);
+        if (pool != null && capacityOf(spec) > 0) {
+            var kp = pool.keyPairs.poll();
+            if (kp != null) {
+                pool.size.decrementAndGet();
+                hits.incrementAndGet();
+                scheduleRefill();
+                return kp;
+            }
+            misses.incrementAndGet();
+            Logger.d(() -> "key pair pool miss for " + spec);
+            scheduleRefill();
+        }
+        return generate(params.algorithm, params.keySize, params.ecCurveName, params.rsaPublicExponent);
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static int getDepth() {
+        int depth = 0;
+        for (var pool : pools.values()) depth += pool.size.get();
+        return depth;
+    }
+
+    private static Spec specOf(CertHack.KeyGenParameters params) {
+        if (params.algorithm == Algorithm.EC && params.ecCurveName != null) {
+            return new Spec(Algorithm.EC, 0, params.ecCurveName, null);
+        } else if (params.algorithm == Algorithm.RSA && params.rsaPublicExponent != null) {
+            return new Spec(Algorithm.RSA, params.keySize, null, params.rsaPublicExponent);
+        }
+        return null;
+    }
+
+    private static int capacityOf(Spec spec) {
+        return spec.algorithm == Algorithm.EC ? ecPoolSize : rsaPoolSize;
+    }
+
+    private static KeyPair generate(int algorithm, int keySize, String curve, BigInteger exponent) throws Exception {
+        if (algorithm == Algorithm.EC) return CryptoEngine.generateECKeyPair(curve);
+        return CryptoEngine.generateRSAKeyPair(keySize, exponent);
+    }
+
+    private static void scheduleRefill() {
+        if (refillScheduled.compareAndSet(false, true)) {
+            refiller.execute(KeyPairPool::refill);
+        }
+    }
+
+    private static void refill() {
+        refillScheduled.set(false);
+        for (var entry : pools.entrySet()) {
+            var spec = entry.getKey();
+            var pool = entry.getValue();
+            try {
+                while (pool.size.get() < capacityOf(spec)) {
+                    pool.keyPairs.offer(generate(spec.algorithm, spec.keySize, spec.curve, spec.exponent));
+                    pool.size.incrementAndGet();
+                }
+                while (pool.size.get() > capacityOf(spec) && pool.keyPairs.poll() != null) {
+                    pool.size.decrementAndGet();
+                }
+            } catch (Throwable t) {
+                Logger.e("failed to refill key pair pool for " + spec, t);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import android.security.keystore.KeyProperties;
+
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.util.io.pem.PemReader;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.a13e300.tricky_store.Logger;
+import io.github.a13e300.tricky_store.UtilKt;
+
+/**
+ * Typed model of keybox.xml, produced by a single streaming pass over the document. Every PEM
+ * block is decoded exactly once and the parsed objects are shared by all consumers.
+ */
+public final class KeyboxDocument {
+    /**
+     * @param algorithm           {@link KeyProperties#KEY_ALGORITHM_EC} or {@link KeyProperties#KEY_ALGORITHM_RSA}
+     * @param privateKey          body of the private key PEM block, as handed to OhMyKeymint
+     * @param encodedCertificates DER of each certificate, leaf first
+     */
+    public record Keybox(String algorithm, byte[] privateKey, PEMKeyPair pemKeyPair, KeyPair keyPair,
+                         List<Certificate> certificates, List<byte[]> encodedCertificates) {
+    }
+
+    private final List<Keybox> keyboxes;
+
+    private KeyboxDocument(List<Keybox> keyboxes) {
+        this.keyboxes = Collections.unmodifiableList(keyboxes);
+    }
+
+    public List<Keybox> keyboxes() {
+        return keyboxes;
+    }
+
+    public static KeyboxDocument parse(String xml) throws Exception {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(new StringReader(xml));
+
+        var converter = new JcaPEMKeyConverter();
+        List<Keybox> keyboxes = new ArrayList<>();
+        String algorithm = null;
+        PEMKeyPair pemKeyPair = null;
+        byte[] privateKey = null;
+        List<Certificate> certificates = new ArrayList<>();
+        List<byte[]> encodedCertificates = new ArrayList<>();
+
+        for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                switch (parser.getName()) {
+                    case "Key" -> {
+                        algorithm = parser.getAttributeValue(null, "algorithm");
+                        pemKeyPair = null;
+                        privateKey = null;
+                        certificates = new ArrayList<>();
+                        encodedCertificates = new ArrayList<>();
+                    }
+                    case "PrivateKey" -> {
+                        var pem = readText(parser);
+                        pemKeyPair = parseKeyPair(pem);
+                        privateKey = decodePem(pem);
+                    }
+                    case "Certificate" -> {
+                        var encoded = decodePem(readText(parser));
+                        encodedCertificates.add(encoded);
+                        certificates.add(CryptoEngine.certificateFactory()
+                                .generateCertificate(new ByteArrayInputStream(encoded)));
+                    }
+                }
+            } else if (event == XmlPullParser.END_TAG && "Key".equals(parser.getName())) {
+                if (algorithm == null || pemKeyPair == null || certificates.isEmpty()) {
+                    throw new XmlPullParserException("incomplete Key element", parser, null);
+                }
+                var keyAlgorithm = keyAlgorithmOf(algorithm);
+                if (keyAlgorithm == null) {
+                    Logger.e("skipping keybox with unknown algorithm " + algorithm);
+                    algorithm = null;
+                    continue;
+                }
+                keyboxes.add(new Keybox(
+                        keyAlgorithm,
+                        privateKey,
+                        pemKeyPair,
+                        converter.getKeyPair(pemKeyPair),
+                        Collections.unmodifiableList(certificates),
+                        Collections.unmodifiableList(encodedCertificates)
+                ));
+                algorithm = null;
+            }
+        }
+        return new KeyboxDocument(keyboxes);
+    }
+
+    private static String keyAlgorithmOf(String algorithm) {
+        if ("ecdsa".equalsIgnoreCase(algorithm)) return KeyProperties.KEY_ALGORITHM_EC;
+        if ("rsa".equalsIgnoreCase(algorithm)) return KeyProperties.KEY_ALGORITHM_RSA;
+        return null;
+    }
+
+    private static String readText(XmlPullParser parser) throws IOException, XmlPullParserException {
+        var text = parser.nextText();
+        if (text == null || text.isBlank()) {
+            throw new XmlPullParserException("empty " + parser.getName(), parser, null);
+        }
+        return UtilKt.trimLine(text);
+    }
+
+    private static PEMKeyPair parseKeyPair(String pem) throws IOException {
+        try (PEMParser parser = new PEMParser(new StringReader(pem))) {
+            return (PEMKeyPair) parser.readObject();
+        }
+    }
+
+    private static byte[] decodePem(String pem) throws IOException {
+        try (PemReader reader = new PemReader(new StringReader(pem))) {
+            return reader.readPemObject().getContent();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.a13e300.tricky_store.keystore;
+
+import android.security.keystore.KeyProperties;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.a13e300.tricky_store.Logger;
+import io.github.a13e300.tricky_store.PackageIndex;
+
+/**
+ * Every keybox of keybox.xml grouped by algorithm, with whatever chain building needs derived
+ * once at load time. Which keybox serves a request is up to the {@link Selection}.
+ */
+public final class KeyboxRegistry {
+    public enum Selection {
+        /** each request takes the next keybox */
+        ROUND_ROBIN,
+        /** every app always gets the same keybox, by the hash of its package name */
+        PINNED,
+        /** the keybox that served a request longest ago */
+        LEAST_RECENTLY_USED;
+
+        public static Selection of(String name) {
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "pinned" -> PINNED;
+                case "lru" -> LEAST_RECENTLY_USED;
+                default -> ROUND_ROBIN;
+            };
+        }
+    }
+
+    public static final class Entry {
+        public final String algorithm;
+        public final KeyPair keyPair;
+        /** leaf first, the leaf is the issuer of generated certificates */
+        public final List<Certificate> certificates;
+        public final List<byte[]> encodedCertificates;
+        /** concatenation of {@link #encodedCertificates}, the certificate chain keystore replies with */
+        public final byte[] encodedChain;
+        public final X500Name issuer;
+        public final Date notAfter;
+        private final String signatureAlgorithm;
+        private final AtomicLong lastUsed = new AtomicLong();
+
+        private Entry(KeyboxDocument.Keybox keybox) throws IOException {
+            algorithm = keybox.algorithm();
+            keyPair = keybox.keyPair();
+            certificates = keybox.certificates();
+            encodedCertificates = keybox.encodedCertificates();
+            var chain = new ByteArrayOutputStream();
+            for (var encoded : encodedCertificates) chain.write(encoded);
+            encodedChain = chain.toByteArray();
+            issuer = new X509CertificateHolder(encodedCertificates.get(0)).getSubject();
+            notAfter = ((X509Certificate) certificates.get(0)).getNotAfter();
+            signatureAlgorithm = KeyProperties.KEY_ALGORITHM_EC.equals(algorithm) ? "SHA256withECDSA" : "SHA256withRSA";
+        }
+
+        /**
+         * Signer for certificates issued by this keybox. Signers buffer what they sign, so each
+         * certificate needs its own, built from the per thread builder of {@link CryptoEngine}.
+         */
+        public ContentSigner signer() throws OperatorCreationException {
+            return CryptoEngine.contentSigner(signatureAlgorithm, keyPair.getPrivate());
+        }
+    }
+
+    private record Group(Entry[] entries, AtomicInteger cursor) {
+    }
+
+    private static volatile Map<String, Group> groups = Map.of();
+    private static volatile Selection selection = Selection.ROUND_ROBIN;
+    private static final AtomicLong clock = new AtomicLong();
+
+    private KeyboxRegistry() {
+    }
+
+    /**
+     * Replace every keybox at once, requests running meanwhile finish on the old set.
+     */
+    public static void load(List<KeyboxDocument.Keybox> keyboxes) throws IOException {
+        Map<String, List<Entry>> byAlgorithm = new HashMap<>();
+        for (var keybox : keyboxes) {
+            byAlgorithm.computeIfAbsent(keybox.algorithm(), a -> new ArrayList<>()).add(new Entry(keybox));
+        }
+        Map<String, Group> newGroups = new HashMap<>();
+        byAlgorithm.forEach((algorithm, entries) ->
+                newGroups.put(algorithm, new Group(entries.toArray(new Entry[0]), new AtomicInteger())));
+        groups = Collections.unmodifiableMap(newGroups);
+        Logger.d(() -> "keyboxes per algorithm: " + byAlgorithm.entrySet().stream()
+                .map(e -> e.getKey() + "=" + e.getValue().size()).toList());
+    }
+
+    public static void clear() {
+        groups = Map.of();
+    }
+
+    public static boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    public static void setSelection(Selection value) {
+        selection = value;
+    }
+
+    /**
+     * The keybox to sign a certificate of {@code algorithm} for {@code uid} with, null if there is
+     * none. A uid of -1 means the app is unknown and pins to the first keybox.
+     */
+    public static Entry select(String algorithm, int uid) {
+        var group = algorithm == null ? null : groups.get(algorithm);
+        if (group == null) return null;
+        var entries = group.entries;
+        if (entries.length == 1) return entries[0];
+        Entry entry;
+        switch (selection) {
+            case PINNED -> entry = entries[Math.floorMod(pinOf(uid), entries.length)];
+            case LEAST_RECENTLY_USED -> {
+                // a handful of keyboxes per algorithm at most, a scan beats keeping them ordered
+                entry = entries[0];
+                for (var e : entries) {
+                    if (e.lastUsed.get() < entry.lastUsed.get()) entry = e;
+                }
+            }
+            default -> entry = entries[Math.floorMod(group.cursor.getAndIncrement(), entries.length)];
+        }
+        entry.lastUsed.set(clock.incrementAndGet());
+        return entry;
+    }
+
+    // package names survive reinstalls and are the same for every user, uids are not; apps sharing
+    // a uid pin by the smallest name so the order packages are listed in does not matter
+    private static int pinOf(int uid) {
+        if (uid < 0) return 0;
+        var packages = PackageIndex.INSTANCE.getPackagesForUid(uid);
+        if (packages == null || packages.length == 0) return uid % 100000;
+        var pin = packages[0];
+        for (var name : packages) {
+            if (name.compareTo(pin) < 0) pin = name;
+        }
+        return pin.hashCode();
+    }
+}
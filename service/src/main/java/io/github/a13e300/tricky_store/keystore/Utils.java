@@ -1,5 +1,10 @@
 package io.github.a13e300.tricky_store.keystore;
 
+import android.hardware.security.keymint.KeyParameter;
+import android.hardware.security.keymint.KeyParameterValue;
+import android.hardware.security.keymint.Tag;
+import android.system.keystore2.Authorization;
+import android.system.keystore2.KeyDescriptor;
 import android.system.keystore2.KeyEntryResponse;
 import android.system.keystore2.KeyMetadata;
 import android.util.Log;
@@ -8,7 +13,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -19,8 +23,7 @@ public class Utils {
     private final static String TAG = "Utils";
     public static X509Certificate toCertificate(byte[] bytes) {
         try {
-            final CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            return (X509Certificate) certFactory.generateCertificate(
+            return (X509Certificate) CryptoEngine.certificateFactory().generateCertificate(
                     new ByteArrayInputStream(bytes));
         } catch (CertificateException e) {
             Log.w(TAG, "Couldn't parse certificate in keystore", e);
@@ -31,8 +34,7 @@ public class Utils {
     @SuppressWarnings("unchecked")
     public static Collection<X509Certificate> toCertificates(byte[] bytes) {
         try {
-            final CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            return (Collection<X509Certificate>) certFactory.generateCertificates(
+            return (Collection<X509Certificate>) CryptoEngine.certificateFactory().generateCertificates(
                     new ByteArrayInputStream(bytes));
         } catch (CertificateException e) {
             Log.w(TAG, "Couldn't parse certificates in keystore", e);
@@ -97,4 +99,46 @@ public class Utils {
         }
         metadata.certificateChain = output.toByteArray();
     }
-}
\ No newline at end of file
+
+    public static KeyEntryResponse buildKeyEntryResponse(List<Certificate> chain, CertHack.KeyGenParameters params,
+                                                         KeyDescriptor descriptor, int level) throws Throwable {
+        var response = new KeyEntryResponse();
+        var metadata = new KeyMetadata();
+        metadata.keySecurityLevel = level;
+        putCertificateChain(metadata, chain.toArray(new Certificate[0]));
+        var d = new KeyDescriptor();
+        d.domain = descriptor.domain;
+        d.nspace = descriptor.nspace;
+        metadata.key = d;
+        List<Authorization> authorizations = new ArrayList<>(params.purpose.size() + params.digest.size() + 4);
+        for (var i : params.purpose) {
+            authorizations.add(authorization(Tag.PURPOSE, KeyParameterValue.keyPurpose(i), level));
+        }
+        for (var i : params.digest) {
+            authorizations.add(authorization(Tag.DIGEST, KeyParameterValue.digest(i), level));
+        }
+        authorizations.add(authorization(Tag.ALGORITHM, KeyParameterValue.algorithm(params.algorithm), level));
+        authorizations.add(authorization(Tag.KEY_SIZE, KeyParameterValue.integer(params.keySize), level));
+        authorizations.add(authorization(Tag.EC_CURVE, KeyParameterValue.ecCurve(params.ecCurve), level));
+        authorizations.add(authorization(Tag.NO_AUTH_REQUIRED, KeyParameterValue.boolValue(true), level)); // TODO: copy
+        // TODO: ORIGIN
+        //OS_VERSION
+        //OS_PATCHLEVEL
+        //VENDOR_PATCHLEVEL
+        //BOOT_PATCHLEVEL
+        //CREATION_DATETIME
+        //USER_ID
+        metadata.authorizations = authorizations.toArray(new Authorization[0]);
+        response.metadata = metadata;
+        return response;
+    }
+
+    private static Authorization authorization(int tag, KeyParameterValue value, int level) {
+        var a = new Authorization();
+        a.keyParameter = new KeyParameter();
+        a.keyParameter.tag = tag;
+        a.keyParameter.value = value;
+        a.securityLevel = level;
+        return a;
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.a13e300.tricky_store.trace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of microsecond latencies in the spirit of HdrHistogram. Values below 64
+ * are exact, larger ones fall into 32 linear buckets per power of two, so any percentile is off
+ * by at most 1/32 of its value. Recording is a single atomic increment.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final int EXACT = SUB_BUCKETS * 2;
+    // 2^36 us is about 19 hours, anything longer is clamped
+    private static final int MAX_BITS = 36;
+    private static final int BUCKETS = EXACT + (MAX_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(Math.max(0, Math.min(micros, MAX_VALUE))));
+    }
+
+    /**
+     * Counts and percentiles read bucket by bucket while recording goes on, so they may be off
+     * by the few samples recorded during the read.
+     */
+    public Snapshot snapshot() {
+        var copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total);
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts, long total) {
+            this.counts = counts;
+            this.total = total;
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * Highest latency in microseconds the given percentage of samples stayed within.
+         */
+        public long percentile(double percent) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestOf(i);
+            }
+            return highestOf(counts.length - 1);
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) return highestOf(i);
+            }
+            return 0;
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < EXACT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestOf(int index) {
+        if (index < EXACT) return index;
+        int shift = (index - EXACT) / SUB_BUCKETS + 1;
+        long sub = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
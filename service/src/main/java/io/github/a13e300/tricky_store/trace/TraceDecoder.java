@@ -0,0 +1,78 @@
+package io.github.a13e300.tricky_store.trace;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Prints trace files written by {@link TransactionTrace}, one transaction per line, oldest file
+ * first:
+ * <pre>
+ * cd /data/adb/modules/tricky_store
+ * app_process -Djava.class.path=./service.apk / io.github.a13e300.tricky_store.trace.TraceDecoder \
+ *     /data/adb/tricky_store/trace/trace.bin.1 /data/adb/tricky_store/trace/trace.bin
+ * </pre>
+ */
+public final class TraceDecoder {
+    private static final String[] TARGETS = {"keystore", "tee", "strongbox"};
+    private static final String[] PHASES = {"?", "pre", "post"};
+    private static final String[] DECISIONS = {"?", "skip", "continue", "override_reply", "override_data", "failed"};
+
+    private TraceDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: TraceDecoder <trace.bin>...");
+            System.exit(1);
+        }
+        for (var arg : args) decode(Paths.get(arg), System.out);
+    }
+
+    public static void decode(Path file, PrintStream out) throws IOException {
+        var buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 12 || buffer.getInt() != TransactionTrace.MAGIC) {
+            throw new IOException(file + " is not a transaction trace");
+        }
+        int version = buffer.getInt();
+        int recordSize = buffer.getInt();
+        if (version != TransactionTrace.VERSION || recordSize < TransactionTrace.RECORD_SIZE) {
+            throw new IOException(file + " has unsupported version " + version);
+        }
+        var format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT);
+        out.println("time target phase code uid pid decision decode_us policy_us crypto_us encode_us");
+        while (buffer.remaining() >= recordSize) {
+            int start = buffer.position();
+            long time = buffer.getLong();
+            int code = buffer.getInt();
+            int uid = buffer.getInt();
+            int pid = buffer.getInt();
+            int target = buffer.get();
+            int phase = buffer.get();
+            int decision = buffer.get();
+            buffer.get();
+            var line = new StringBuilder()
+                    .append(format.format(new Date(time))).append(' ')
+                    .append(name(TARGETS, target)).append(' ')
+                    .append(name(PHASES, phase)).append(' ')
+                    .append(code).append(' ').append(uid).append(' ').append(pid).append(' ')
+                    .append(name(DECISIONS, decision));
+            for (int i = 0; i < TransactionTrace.STAGES; i++) {
+                line.append(' ').append(Integer.toUnsignedLong(buffer.getInt()));
+            }
+            out.println(line);
+            buffer.position(start + recordSize);
+        }
+    }
+
+    private static String name(String[] names, int value) {
+        return value >= 0 && value < names.length ? names[value] : String.valueOf(value);
+    }
+}
@@ -0,0 +1,224 @@
+package io.github.a13e300.tricky_store.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.github.a13e300.tricky_store.Logger;
+
+/**
+ * Always-on trace of intercepted transactions. Binder threads append fixed-size binary records to
+ * rings striped by thread, without locks or allocation, and a background thread appends whatever
+ * is new to a rotating file that {@link TraceDecoder} turns back into text.
+ */
+public final class TransactionTrace {
+    public static final int TARGET_KEYSTORE = 0;
+    public static final int TARGET_TEE = 1;
+    public static final int TARGET_STRONGBOX = 2;
+
+    public static final int PHASE_PRE = 1;
+    public static final int PHASE_POST = 2;
+
+    public static final int DECISION_SKIP = 1;
+    public static final int DECISION_CONTINUE = 2;
+    public static final int DECISION_OVERRIDE_REPLY = 3;
+    public static final int DECISION_OVERRIDE_DATA = 4;
+    public static final int DECISION_FAILED = 5;
+
+    public static final int STAGE_DECODE = 0;
+    public static final int STAGE_POLICY = 1;
+    public static final int STAGE_CRYPTO = 2;
+    public static final int STAGE_ENCODE = 3;
+    static final int STAGES = 4;
+
+    // file layout: MAGIC, VERSION, RECORD_SIZE as little endian ints, then the records
+    static final int MAGIC = 0x52545354; // "TSTR"
+    static final int VERSION = 1;
+    // timeMillis(8) code(4) uid(4) pid(4) target(1) phase(1) decision(1) pad(1) stage micros(4 * 4)
+    static final int RECORD_SIZE = 40;
+    private static final int RECORD_LONGS = RECORD_SIZE / Long.BYTES;
+
+    private static final int STRIPES = 8;
+    private static final int RECORDS_PER_STRIPE = 512;
+    private static final long FLUSH_INTERVAL_MS = 5_000;
+    private static final long MAX_FILE_BYTES = 1 << 20;
+    private static final int KEPT_FILES = 3;
+
+    private static final class Stripe {
+        final AtomicLong cursor = new AtomicLong();
+        // sequence number of the record in each slot, written last so readers can tell torn slots
+        final AtomicLongArray sequences = new AtomicLongArray(RECORDS_PER_STRIPE);
+        // atomic so a record is never seen before the -1 that marks its slot torn; VarHandle fences
+        // would do with a plain array but need API 33
+        final AtomicLongArray records = new AtomicLongArray(RECORDS_PER_STRIPE * RECORD_LONGS);
+        long flushed;
+    }
+
+    // the record a binder thread is filling while it runs one callback
+    private static final class Pending {
+        long timeMillis;
+        int code;
+        int uid;
+        int pid;
+        int target;
+        int phase;
+        final long[] stageNanos = new long[STAGES];
+        boolean active;
+    }
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    private static final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static volatile boolean enabled = false;
+    private static File directory;
+    private static ScheduledExecutorService flusher;
+    private static ScheduledFuture<?> flushTask;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    private TransactionTrace() {
+    }
+
+    /**
+     * Start or stop recording, records are flushed to {@code trace.bin} in {@code dir}.
+     */
+    public static synchronized void setEnabled(boolean enable, File dir) {
+        if (enable == enabled) return;
+        if (enable) {
+            directory = dir;
+            if (flusher == null) {
+                flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    var t = new Thread(r, "TraceFlusher");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            flushTask = flusher.scheduleWithFixedDelay(TransactionTrace::flush,
+                    FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            enabled = true;
+        } else {
+            enabled = false;
+            flushTask.cancel(false);
+            flusher.execute(TransactionTrace::flush);
+        }
+    }
+
+    public static void begin(int target, int phase, int code, int uid, int pid) {
+        if (!enabled) return;
+        var p = pending.get();
+        p.timeMillis = System.currentTimeMillis();
+        p.target = target;
+        p.phase = phase;
+        p.code = code;
+        p.uid = uid;
+        p.pid = pid;
+        for (int i = 0; i < STAGES; i++) p.stageNanos[i] = 0;
+        p.active = true;
+    }
+
+    /**
+     * Charge the time since {@code startNanos}, a {@link System#nanoTime()} value, to a stage of
+     * the current callback.
+     */
+    public static void stage(int stage, long startNanos) {
+        if (!enabled) return;
+        var p = pending.get();
+        if (p.active) p.stageNanos[stage] += System.nanoTime() - startNanos;
+    }
+
+    public static void end(int decision) {
+        if (!enabled) return;
+        var p = pending.get();
+        if (!p.active) return;
+        p.active = false;
+        var stripe = stripes[(int) (Thread.currentThread().getId() % STRIPES)];
+        long seq = stripe.cursor.getAndIncrement();
+        int slot = (int) (seq % RECORDS_PER_STRIPE);
+        stripe.sequences.set(slot, -1);
+        int i = slot * RECORD_LONGS;
+        var r = stripe.records;
+        // release stores, each ordered after the -1 above
+        r.lazySet(i, p.timeMillis);
+        r.lazySet(i + 1, ((long) p.code << 32) | (p.uid & 0xffffffffL));
+        r.lazySet(i + 2, ((long) p.pid << 32) | (p.target & 0xff) | (p.phase & 0xff) << 8 | (decision & 0xff) << 16);
+        r.lazySet(i + 3, ((long) micros(p.stageNanos[STAGE_DECODE]) << 32) | micros(p.stageNanos[STAGE_POLICY]));
+        r.lazySet(i + 4, ((long) micros(p.stageNanos[STAGE_CRYPTO]) << 32) | micros(p.stageNanos[STAGE_ENCODE]));
+        stripe.sequences.set(slot, seq);
+    }
+
+    private static long micros(long nanos) {
+        return Math.min(nanos / 1000, 0xffffffffL);
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void flush() {
+        var buffer = ByteBuffer.allocate(STRIPES * RECORDS_PER_STRIPE * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (var stripe : stripes) {
+            long end = stripe.cursor.get();
+            long start = Math.max(stripe.flushed, end - RECORDS_PER_STRIPE);
+            if (start > stripe.flushed) dropped.addAndGet(start - stripe.flushed);
+            for (long seq = start; seq < end; seq++) {
+                int slot = (int) (seq % RECORDS_PER_STRIPE);
+                if (stripe.sequences.get(slot) != seq) continue; // still being written or overwritten
+                int i = slot * RECORD_LONGS;
+                var r = stripe.records;
+                long t = r.get(i), codeUid = r.get(i + 1), pidFlags = r.get(i + 2);
+                long s01 = r.get(i + 3), s23 = r.get(i + 4);
+                // the reads above cannot move past this one, a writer that started meanwhile shows here
+                if (stripe.sequences.get(slot) != seq) continue;
+                buffer.putLong(t);
+                buffer.putInt((int) (codeUid >>> 32));
+                buffer.putInt((int) codeUid);
+                buffer.putInt((int) (pidFlags >>> 32));
+                buffer.put((byte) pidFlags);
+                buffer.put((byte) (pidFlags >>> 8));
+                buffer.put((byte) (pidFlags >>> 16));
+                buffer.put((byte) 0);
+                buffer.putInt((int) (s01 >>> 32));
+                buffer.putInt((int) s01);
+                buffer.putInt((int) (s23 >>> 32));
+                buffer.putInt((int) s23);
+            }
+            stripe.flushed = end;
+        }
+        if (buffer.position() == 0) return;
+        try {
+            write(buffer);
+        } catch (IOException e) {
+            Logger.e("failed to flush transaction trace", e);
+        }
+    }
+
+    private static void write(ByteBuffer records) throws IOException {
+        directory.mkdirs();
+        var file = new File(directory, "trace.bin");
+        if (file.length() + records.position() > MAX_FILE_BYTES) {
+            for (int i = KEPT_FILES - 1; i > 0; i--) {
+                var from = new File(directory, i == 1 ? "trace.bin" : "trace.bin." + (i - 1));
+                if (from.exists()) from.renameTo(new File(directory, "trace.bin." + i));
+            }
+        }
+        try (var out = new FileOutputStream(file, true)) {
+            if (file.length() == 0) {
+                var header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE);
+                out.write(header.array());
+            }
+            out.write(records.array(), 0, records.position());
+        }
+    }
+}
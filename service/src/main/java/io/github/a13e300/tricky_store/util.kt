@@ -7,6 +7,7 @@ import android.os.Parcel
 import android.os.Parcelable
 import android.os.SystemProperties
 import io.github.a13e300.tricky_store.Config.getPm
+import io.github.a13e300.tricky_store.trace.TransactionTrace
 import org.bouncycastle.asn1.ASN1Encodable
 import org.bouncycastle.asn1.ASN1Integer
 import org.bouncycastle.asn1.DEROctetString
@@ -20,6 +21,16 @@ fun getTransactCode(clazz: Class<*>, method: String) =
     clazz.getDeclaredField("TRANSACTION_$method").apply { isAccessible = true }
         .getInt(null) // 2
 
+// charge the time spent in block to a stage of the transaction traced on this thread
+inline fun <T> traced(stage: Int, block: () -> T): T {
+    val start = System.nanoTime()
+    try {
+        return block()
+    } finally {
+        TransactionTrace.stage(stage, start)
+    }
+}
+
 val bootHash by lazy {
     getBootHashFromProp() ?: randomBytes()
 }
@@ -104,8 +115,8 @@ val moduleHash: ByteArray by lazy {
 }
 
 @Suppress("MissingPermission")
-val telephonyInfos by lazy {
-    mutableListOf<DERTaggedObject>().apply {
+val telephonyInfos: List<DERTaggedObject>
+    get() = mutableListOf<DERTaggedObject>().apply {
         Config.devConfig.deviceProps.also {
             add(it.imei.toDER().toTaggedObj(714))
             add(it.meid.toDER().toTaggedObj(715))
@@ -118,25 +129,13 @@ val telephonyInfos by lazy {
             add(it.manufacturer.toDER().toTaggedObj(716))
             add(it.model.toDER().toTaggedObj(717))
         }
-    }.toList()
-}
+    }
 
 fun String.toDER() = DEROctetString(this.toByteArray())
 
 fun DEROctetString.toTaggedObj(tag: Int, explicit: Boolean = true) = DERTaggedObject(explicit, tag, this)
 fun String.trimLine() = trim().split("\n").joinToString("\n") { it.trim() }
 
-const val BEGIN = "-----BEGIN.*?-----"
-const val END = "-----END.*?-----"
-
-fun parsePemToBase64(str: String): String {
-    val result = str.trimLine()
-        .replace(BEGIN.toRegex(RegexOption.MULTILINE), "")
-        .replace(END.toRegex(RegexOption.MULTILINE), "")
-        .replace("\n", "")
-    return result
-}
-
 fun Parcelable.toBytes(): ByteArray {
     val p = Parcel.obtain()
     return try {
@@ -13,6 +13,13 @@ public class ServiceManager {
         throw new UnsupportedOperationException("STUB!");
     }
 
+    /**
+     * Blocks until the service is registered, available since Android 11.
+     */
+    public static IBinder waitForService(String name) {
+        throw new UnsupportedOperationException("STUB!");
+    }
+
     public static String[] listServices() {
         throw new UnsupportedOperationException("STUB!");
     }